@@ -0,0 +1,145 @@
+/**
+ * BatchProcess: MigratableProcess that works through its input in batches of
+ * records. A subclass only implements processBatch(), and the framework runs
+ * the loop around it:
+ * 1) Each batch runs under the process lock, so a checkpoint or snapshot never
+ *    sees half a batch, and the suspend/quit flags are checked between batches
+ *    rather than for every record
+ * 2) The batch size adapts so that a batch takes about batch.targetMillis
+ *    milliseconds (default 10), which bounds how long a suspend waits for the
+ *    next safe point while cheap records still come in large batches
+ * 3) Batches are paced by the rate of the process, one record per unit
+ * 4) A batch that makes no progress is retried after a pause that doubles
+ *    each time, and the process fails after batch.maxStalls of them in a row
+ * 5) At the end the streams of getInputFiles() and getOutputFiles() are
+ *    flushed and closed, and the listener is signalled
+ *
+ * The framework also flushes the output files for a checkpoint and flags all
+ * files for migration.
+ */
+package com.company;
+
+import java.io.IOException;
+
+@SuppressWarnings("serial")
+public abstract class BatchProcess extends MigratableProcess {
+
+        // How long a batch should take, in nanoseconds
+        private static final long TARGET_NANOS = Long.getLong("batch.targetMillis", 10) * 1000000;
+
+        // Size of the first batch on a node, and the largest batch
+        private static final int INITIAL_BATCH = 64;
+        private static final int MAX_BATCH = 1 << 24;
+
+        // Batches in a row that may make no progress, and the longest pause after one, in milliseconds
+        private static final int MAX_STALLS = Integer.getInteger("batch.maxStalls", 20);
+        private static final long MAX_STALL_PAUSE = 1000;
+
+        // Weight of the latest batch in the average cost of a record
+        private static final double SMOOTHING = 0.25;
+
+        // 0 until the process first runs on this node
+        private transient int batchSize;
+
+        // Average time one record takes, 0 until the first batch is timed
+        private transient double nanosPerRecord;
+
+        public BatchProcess(String[] args)
+        {
+                super(args);
+        }
+
+        /**
+         * processBatch: Process up to maxRecords records, called with the process
+         * lock held. Must not block for long, and must leave the state written by
+         * writeState() consistent when it returns.
+         * @return the number of records processed, or -1 once there are none left
+         */
+        protected abstract int processBatch(int maxRecords) throws IOException;
+
+        /**
+         * initialBatchSize: Records in the first batch on a node, before the batch
+         * size has adapted. Processes whose records are very cheap start higher.
+         */
+        protected int initialBatchSize()
+        {
+                return INITIAL_BATCH;
+        }
+
+        @Override
+        public final void run()
+        {
+                try {
+                        try {
+                                if (batchSize <= 0)
+                                        batchSize = Math.max(1, Math.min(initialBatchSize(), MAX_BATCH));
+                                int stalls = 0;
+                                while (!suspend_flag && !should_quit) {
+                                        int max = (int) paceLimit(batchSize);
+                                        long start = System.nanoTime();
+                                        int done;
+                                        synchronized (this) {
+                                                done = processBatch(max);
+                                                if (done < 0)
+                                                        break;
+                                                markDirty();
+                                        }
+                                        if (done == 0) {
+                                                if (++stalls > MAX_STALLS)
+                                                        throw new IOException("No progress in " + MAX_STALLS + " batches");
+                                                pause(Math.min(1L << (stalls - 1), MAX_STALL_PAUSE));
+                                                continue;
+                                        }
+                                        stalls = 0;
+                                        adapt(done, System.nanoTime() - start);
+                                        pace(done);
+                                }
+                        } finally {
+                                // Flush and close the files when the batch fails too
+                                for (TransactionalFileInputStream in : getInputFiles())
+                                        in.closeFile();
+                                for (TransactionalFileOutputStream out : getOutputFiles())
+                                        out.closeFile();
+                        }
+                        reachedSafePoint();
+                } catch (IOException e) {
+                        System.out.println(getClass().getSimpleName() + ": Error: " + e);
+                } finally {
+                        signalListeners();
+                }
+        }
+
+        // Size the next batch from the average cost of a record, growing at most twofold per batch
+        private void adapt(int records, long nanos)
+        {
+                if (records <= 0)
+                        return;
+                double perRecord = (double) nanos / records;
+                nanosPerRecord = nanosPerRecord == 0 ? perRecord
+                        : nanosPerRecord + SMOOTHING * (perRecord - nanosPerRecord);
+                double ideal = TARGET_NANOS / Math.max(nanosPerRecord, 1);
+                batchSize = (int) Math.max(1, Math.min(Math.min(ideal, 2.0 * batchSize), MAX_BATCH));
+        }
+
+        // Records the next batch may take, before pacing
+        public int getBatchSize()
+        {
+                return batchSize > 0 ? batchSize : initialBatchSize();
+        }
+
+        @Override
+        public void migrationPreProcess()
+        {
+                for (TransactionalFileInputStream in : getInputFiles())
+                        in.setFlag(true);
+                for (TransactionalFileOutputStream out : getOutputFiles())
+                        out.setFlag(true);
+        }
+
+        @Override
+        protected void checkpointPreProcess() throws IOException
+        {
+                for (TransactionalFileOutputStream out : getOutputFiles())
+                        out.flush();
+        }
+}
@@ -0,0 +1,197 @@
+/**
+ * CheckpointService: Periodically snapshots every process running on this node
+ * into a CheckpointStore, so a restarted ProcessManager can resume them.
+ * A process whose state has not changed since its last checkpoint is skipped,
+ * and a process whose state changed only a little gets a delta record instead
+ * of a full one. The log is compacted once it grows past COMPACT_SIZE.
+ */
+package com.company;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class CheckpointService implements Runnable {
+
+        // Default checkpoint interval in milliseconds
+        public static final long DEFAULT_INTERVAL = 10 * 1000;
+
+        // Rewrite the log with only the latest full states once it is this big
+        public static final long COMPACT_SIZE = 64L * 1024 * 1024;
+
+        private ProcessManager pm;
+        private CheckpointStore store;
+        private long interval;
+        private ScheduledExecutorService scheduler;
+
+        // Last checkpoint taken of each process
+        private ConcurrentHashMap<MigratableProcess, Checkpoint> last =
+                new ConcurrentHashMap<MigratableProcess, Checkpoint>();
+
+        private static class Checkpoint {
+                long pid;
+                long stateVersion;
+                byte[] state;
+
+                Checkpoint(long pid, long stateVersion, byte[] state) {
+                        this.pid = pid;
+                        this.stateVersion = stateVersion;
+                        this.state = state;
+                }
+        }
+
+        public CheckpointService(ProcessManager pm, CheckpointStore store, long interval) {
+                this.pm = pm;
+                this.store = store;
+                this.interval = interval;
+        }
+
+        /**
+         * fromProperties: Service configured by checkpoint.dir and checkpoint.interval
+         * (milliseconds, 0 turns checkpointing off)
+         * @return null if checkpointing is off or the store cannot be opened
+         */
+        public static CheckpointService fromProperties(ProcessManager pm, String hostName) {
+                long interval = Long.getLong("checkpoint.interval", DEFAULT_INTERVAL);
+                if (interval <= 0) {
+                        return null;
+                }
+                File dir = new File(System.getProperty("checkpoint.dir", "checkpoints"), hostName);
+                try {
+                        return new CheckpointService(pm, new CheckpointStore(dir), interval);
+                } catch (IOException e) {
+                        System.err.println("Checkpointing disabled: " + e.getMessage());
+                        return null;
+                }
+        }
+
+        public void start() {
+                scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "CheckpointService");
+                                t.setDaemon(true);
+                                return t;
+                        }
+                });
+                scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        public void stop() {
+                if (scheduler != null) {
+                        scheduler.shutdown();
+                }
+        }
+
+        // One checkpoint round over all processes on this node
+        public void run() {
+                try {
+                        Object[] processes = pm.getAllProcesses();
+                        for (int i = 0; i < processes.length; i++) {
+                                checkpoint((MigratableProcess) processes[i]);
+                        }
+                        store.sync();
+
+                        if (store.size() > COMPACT_SIZE) {
+                                compact();
+                        }
+                } catch (IOException e) {
+                        System.err.println("Checkpoint failed: " + e.getMessage());
+                }
+        }
+
+        // Synchronized with processRemoved() so a finished process is not written back
+        private synchronized void checkpoint(MigratableProcess process) throws IOException {
+                if (!pm.hasProcess(process)) {
+                        return;
+                }
+                long version = process.getStateVersion();
+                Checkpoint previous = last.get(process);
+                if (previous != null && previous.stateVersion == version) {
+                        return;
+                }
+
+                byte[] state = process.checkpoint();
+                long pid = process.getProcID();
+                StateDelta delta = previous == null ? null : StateDelta.compute(previous.state, state);
+                if (delta != null && delta.size() * 2 < state.length) {
+                        store.appendDelta(pid, delta);
+                } else {
+                        store.appendFull(pid, state);
+                }
+                last.put(process, new Checkpoint(pid, version, state));
+        }
+
+        // Synchronized with processRemoved(), a REMOVE appended while the log is rewritten would be lost
+        private synchronized void compact() throws IOException {
+                Map<Long, byte[]> states = new LinkedHashMap<Long, byte[]>();
+                Iterator<Checkpoint> itr = last.values().iterator();
+                while (itr.hasNext()) {
+                        Checkpoint checkpoint = itr.next();
+                        states.put(checkpoint.pid, checkpoint.state);
+                }
+                store.compact(states);
+        }
+
+        /**
+         * processRemoved: A process finished, was killed or left this node.
+         * Record it so that it is not resumed after a restart.
+         */
+        public synchronized void processRemoved(MigratableProcess process) {
+                Checkpoint checkpoint = last.remove(process);
+                if (checkpoint == null) {
+                        return;
+                }
+                try {
+                        store.appendRemove(checkpoint.pid);
+                        store.sync();
+                } catch (IOException e) {
+                        System.err.println("Could not record removal of process " + checkpoint.pid + ": "
+                                + e.getMessage());
+                }
+        }
+
+        /**
+         * recover: Restart every process found in the checkpoint log
+         * @return The number of processes resumed
+         */
+        public int recover() {
+                Map<Long, byte[]> states;
+                try {
+                        states = store.load();
+                } catch (IOException e) {
+                        System.err.println("Could not read the checkpoint log: " + e.getMessage());
+                        return 0;
+                }
+
+                int resumed = 0;
+                Iterator<Map.Entry<Long, byte[]>> itr = states.entrySet().iterator();
+                while (itr.hasNext()) {
+                        Map.Entry<Long, byte[]> entry = itr.next();
+                        try {
+                                MigratableProcess process = (MigratableProcess) MessageCodec.fromBytes(entry.getValue());
+                                pm.resumeProcess(process);
+                                last.put(process, new Checkpoint(process.getProcID(), process.getStateVersion(),
+                                        entry.getValue()));
+                                resumed++;
+                        } catch (IOException e) {
+                                System.err.println("Could not resume checkpointed process " + entry.getKey() + ": "
+                                        + e.getMessage());
+                        }
+                }
+
+                // Start the log afresh with only the resumed processes
+                try {
+                        compact();
+                } catch (IOException e) {
+                        System.err.println("Could not compact the checkpoint log: " + e.getMessage());
+                }
+                return resumed;
+        }
+}
@@ -0,0 +1,199 @@
+/**
+ * CheckpointStore: Append-only log of process checkpoints on the local disk.
+ * Each record is [varint length][byte type][varlong pid][payload][int crc32] where
+ * the payload is the encoded process (FULL), a StateDelta against the previous
+ * checkpoint of the same pid (DELTA), or nothing (REMOVE). A record with a bad
+ * checksum marks a torn write at the end of the log, and loading stops there.
+ */
+package com.company;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class CheckpointStore {
+
+        public static final byte FULL = 0;
+        public static final byte DELTA = 1;
+        public static final byte REMOVE = 2;
+
+        private File logFile;
+        private FileOutputStream fileOut;
+        private DataOutputStream out;
+
+        public CheckpointStore(File dir) throws IOException {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                        throw new IOException("Could not create checkpoint directory " + dir);
+                }
+                this.logFile = new File(dir, "checkpoints.log");
+        }
+
+        /**
+         * load: Replay the log
+         * @return The latest encoded state of every process that has not been removed, by pid
+         */
+        public synchronized Map<Long, byte[]> load() throws IOException {
+                Map<Long, byte[]> states = new LinkedHashMap<Long, byte[]>();
+                if (!logFile.exists()) {
+                        return states;
+                }
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+                try {
+                        while (true) {
+                                byte[] record;
+                                try {
+                                        int length = WireFormat.readVarInt(in);
+                                        if (length < 0 || length > logFile.length()) {
+                                                System.err.println("Checkpoint log ends in a torn record, ignoring it.");
+                                                break;
+                                        }
+                                        record = new byte[length];
+                                        in.readFully(record);
+                                } catch (EOFException e) {
+                                        break;
+                                }
+                                if (!checksumOk(record)) {
+                                        System.err.println("Checkpoint log ends in a torn record, ignoring it.");
+                                        break;
+                                }
+                                apply(states, record);
+                        }
+                } finally {
+                        in.close();
+                }
+                return states;
+        }
+
+        private void apply(Map<Long, byte[]> states, byte[] record) throws IOException {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 0, record.length - 4));
+                byte type = in.readByte();
+                long pid = WireFormat.readSignedVarLong(in);
+
+                switch (type) {
+                case FULL:
+                        byte[] payload = new byte[in.available()];
+                        in.readFully(payload);
+                        states.put(pid, payload);
+                        break;
+                case DELTA:
+                        StateDelta delta = MessageCodec.readDelta(in);
+                        byte[] previous = states.get(pid);
+                        if (previous != null && delta != null) {
+                                states.put(pid, delta.apply(previous));
+                        }
+                        break;
+                case REMOVE:
+                        states.remove(pid);
+                        break;
+                default:
+                        throw new IOException("Unknown checkpoint record type " + type);
+                }
+        }
+
+        private static boolean checksumOk(byte[] record) {
+                if (record.length < 6) {
+                        return false;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(record, 0, record.length - 4);
+                int n = record.length - 4;
+                int stored = ((record[n] & 0xFF) << 24) | ((record[n + 1] & 0xFF) << 16)
+                        | ((record[n + 2] & 0xFF) << 8) | (record[n + 3] & 0xFF);
+                return stored == (int) crc.getValue();
+        }
+
+        public synchronized void appendFull(long pid, byte[] state) throws IOException {
+                append(FULL, pid, state);
+        }
+
+        public synchronized void appendDelta(long pid, StateDelta delta) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(delta.size() + 16);
+                MessageCodec.writeDelta(new DataOutputStream(bytes), delta);
+                append(DELTA, pid, bytes.toByteArray());
+        }
+
+        public synchronized void appendRemove(long pid) throws IOException {
+                append(REMOVE, pid, new byte[0]);
+        }
+
+        private void append(byte type, long pid, byte[] payload) throws IOException {
+                if (out == null) {
+                        fileOut = new FileOutputStream(logFile, true);
+                        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                }
+                out.write(encodeRecord(type, pid, payload));
+        }
+
+        private static byte[] encodeRecord(byte type, long pid, byte[] payload) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 16);
+                DataOutputStream body = new DataOutputStream(bytes);
+                body.writeByte(type);
+                WireFormat.writeSignedVarLong(body, pid);
+                body.write(payload);
+                CRC32 crc = new CRC32();
+                crc.update(bytes.toByteArray());
+                body.writeInt((int) crc.getValue());
+
+                ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.size() + 5);
+                WireFormat.writeVarInt(new DataOutputStream(record), bytes.size());
+                bytes.writeTo(record);
+                return record.toByteArray();
+        }
+
+        // Push appended records to the disk
+        public synchronized void sync() throws IOException {
+                if (out != null) {
+                        out.flush();
+                        fileOut.getChannel().force(false);
+                }
+        }
+
+        /**
+         * compact: Replace the log with one FULL record per process
+         */
+        public synchronized void compact(Map<Long, byte[]> states) throws IOException {
+                close();
+                File tmp = new File(logFile.getPath() + ".tmp");
+                FileOutputStream tmpOut = new FileOutputStream(tmp);
+                try {
+                        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(tmpOut));
+                        Iterator<Map.Entry<Long, byte[]>> itr = states.entrySet().iterator();
+                        while (itr.hasNext()) {
+                                Map.Entry<Long, byte[]> entry = itr.next();
+                                data.write(encodeRecord(FULL, entry.getKey(), entry.getValue()));
+                        }
+                        data.flush();
+                        tmpOut.getChannel().force(false);
+                } finally {
+                        tmpOut.close();
+                }
+                if (!tmp.renameTo(logFile)) {
+                        throw new IOException("Could not replace " + logFile);
+                }
+        }
+
+        public long size() {
+                return logFile.length();
+        }
+
+        public synchronized void close() throws IOException {
+                if (out != null) {
+                        out.close();
+                        out = null;
+                        fileOut = null;
+                }
+        }
+}
@@ -0,0 +1,91 @@
+/**
+ * ClusterProcessList: The merged result of a cluster-wide 'ps'.
+ * Holds the processes reported by every host that answered in time, and
+ * which hosts timed out or failed.
+ */
+package com.company;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ClusterProcessList {
+
+        private Map<String, List<MigratableProcess>> processes = new LinkedHashMap<String, List<MigratableProcess>>();
+        private List<String> timedOutHosts = new ArrayList<String>();
+        private Map<String, String> failedHosts = new LinkedHashMap<String, String>();
+
+        public synchronized void addHost(String host, List<MigratableProcess> list) {
+                processes.put(host, list);
+        }
+
+        public synchronized void addTimedOutHost(String host) {
+                timedOutHosts.add(host);
+        }
+
+        public synchronized void addFailedHost(String host, String reason) {
+                failedHosts.put(host, reason);
+        }
+
+        // Hosts that answered, in the order their answers arrived
+        public synchronized List<String> getHosts() {
+                return new ArrayList<String>(processes.keySet());
+        }
+
+        public synchronized List<MigratableProcess> getProcesses(String host) {
+                List<MigratableProcess> list = processes.get(host);
+                if (list == null) {
+                        return Collections.emptyList();
+                }
+                return list;
+        }
+
+        // All processes from all hosts that answered
+        public synchronized List<MigratableProcess> getAllProcesses() {
+                List<MigratableProcess> all = new ArrayList<MigratableProcess>();
+                Iterator<List<MigratableProcess>> itr = processes.values().iterator();
+                while (itr.hasNext()) {
+                        all.addAll(itr.next());
+                }
+                return all;
+        }
+
+        public synchronized List<String> getTimedOutHosts() {
+                return new ArrayList<String>(timedOutHosts);
+        }
+
+        public synchronized Map<String, String> getFailedHosts() {
+                return new LinkedHashMap<String, String>(failedHosts);
+        }
+
+        public synchronized void print() {
+                Iterator<Map.Entry<String, List<MigratableProcess>>> itr = processes.entrySet().iterator();
+                while (itr.hasNext()) {
+                        Map.Entry<String, List<MigratableProcess>> entry = itr.next();
+                        if (entry.getValue().isEmpty()) {
+                                System.out.println(entry.getKey() + " - no processes running");
+                        } else {
+                                System.out.println(entry.getKey() + " - has following processes running");
+                        }
+
+                        Iterator<MigratableProcess> procItr = entry.getValue().iterator();
+                        while (procItr.hasNext()) {
+                                System.out.println(procItr.next().toString());
+                        }
+                }
+
+                Iterator<String> hostItr = timedOutHosts.iterator();
+                while (hostItr.hasNext()) {
+                        System.out.println(hostItr.next() + " - timed out");
+                }
+
+                Iterator<Map.Entry<String, String>> failItr = failedHosts.entrySet().iterator();
+                while (failItr.hasNext()) {
+                        Map.Entry<String, String> entry = failItr.next();
+                        System.out.println(entry.getKey() + " - could not be reached (" + entry.getValue() + ")");
+                }
+        }
+}
@@ -0,0 +1,101 @@
+/**
+ * Compression: Codecs for frame payloads, picked by payload size.
+ * Small payloads are sent as they are, medium ones with a fast Deflater level
+ * and large ones with a stronger Deflater level. The codec ID travels in the
+ * frame header so the receiving side can undo it without any configuration.
+ */
+package com.company;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class Compression {
+
+        // Codec IDs as written in the frame header
+        public static final byte NONE = 0;
+        public static final byte DEFLATE_FAST = 1;
+        public static final byte DEFLATE = 2;
+
+        // Payloads below this size are not worth compressing
+        public static final int FAST_THRESHOLD = 4 * 1024;
+
+        // Payloads from this size up get the stronger level
+        public static final int STRONG_THRESHOLD = 256 * 1024;
+
+        private static final int STRONG_LEVEL = 6;
+
+        private Compression() {
+        }
+
+        // Codec to use for a payload of size bytes
+        public static byte choose(int size) {
+                if (size < FAST_THRESHOLD) {
+                        return NONE;
+                } else if (size < STRONG_THRESHOLD) {
+                        return DEFLATE_FAST;
+                }
+                return DEFLATE;
+        }
+
+        public static String name(byte codec) {
+                switch (codec) {
+                case NONE:
+                        return "none";
+                case DEFLATE_FAST:
+                        return "deflate-fast";
+                case DEFLATE:
+                        return "deflate";
+                default:
+                        return "unknown(" + codec + ")";
+                }
+        }
+
+        public static byte[] compress(byte codec, byte[] data, int offset, int length) {
+                Deflater deflater = new Deflater(codec == DEFLATE_FAST ? Deflater.BEST_SPEED : STRONG_LEVEL);
+                try {
+                        deflater.setInput(data, offset, length);
+                        deflater.finish();
+                        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 2));
+                        byte[] chunk = new byte[64 * 1024];
+                        while (!deflater.finished()) {
+                                int n = deflater.deflate(chunk);
+                                out.write(chunk, 0, n);
+                        }
+                        return out.toByteArray();
+                } finally {
+                        deflater.end();
+                }
+        }
+
+        public static byte[] decompress(byte codec, byte[] data, int offset, int length, int originalLength)
+                        throws IOException {
+                if (codec != DEFLATE_FAST && codec != DEFLATE) {
+                        throw new IOException("Unknown compression codec " + codec);
+                }
+                Inflater inflater = new Inflater();
+                try {
+                        inflater.setInput(data, offset, length);
+                        byte[] out = new byte[originalLength];
+                        int n = 0;
+                        while (n < originalLength && !inflater.finished()) {
+                                int read = inflater.inflate(out, n, originalLength - n);
+                                // An inflater that stops producing output will not produce any more
+                                if (read == 0) {
+                                        break;
+                                }
+                                n += read;
+                        }
+                        if (n != originalLength) {
+                                throw new IOException("Compressed payload is truncated");
+                        }
+                        return out;
+                } catch (DataFormatException e) {
+                        throw new IOException("Corrupt compressed payload: " + e.getMessage());
+                } finally {
+                        inflater.end();
+                }
+        }
+}
@@ -0,0 +1,154 @@
+/**
+ * Connection: A long-lived, multiplexed connection to the Server of another node.
+ * Any number of threads can send requests over it at the same time. Every request
+ * gets its own requestId and a reader thread hands each response to the caller
+ * waiting for that id.
+ */
+
+package com.company;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+public class Connection implements Runnable {
+
+        // Give up connecting to a host after this many milliseconds
+        public static final int CONNECT_TIMEOUT = 5 * 1000;
+
+        private String host;
+        private Socket sock;
+        private DataOutputStream out;
+        private DataInputStream in;
+
+        // Next request ID and the requests still waiting for their response
+        private AtomicInteger nextRequestId = new AtomicInteger();
+        private ConcurrentHashMap<Integer, CompletableFuture<Object>> pending =
+                new ConcurrentHashMap<Integer, CompletableFuture<Object>>();
+
+        // Time of the last send, used for idle eviction
+        private volatile long lastUsed;
+        private volatile boolean closed;
+
+        public Connection(String host, int port) throws IOException {
+                this.host = host;
+                this.sock = new Socket();
+                this.sock.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                this.sock.setTcpNoDelay(true);
+                this.out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+                this.in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+                this.lastUsed = System.currentTimeMillis();
+
+                Thread reader = new Thread(this, "Connection-" + host);
+                reader.setDaemon(true);
+                reader.start();
+        }
+
+        public String getHost() {
+                return host;
+        }
+
+        /**
+         * send: Send a request without waiting for its response
+         * @param payload: The Request or MigratableProcess to send
+         * @return A future completed with the response, or exceptionally if the connection fails
+         */
+        public CompletableFuture<Object> send(Object payload) {
+                return send(payload, null);
+        }
+
+        /**
+         * send: As above, and record the encoded and compressed size in stats if it is not null
+         */
+        public CompletableFuture<Object> send(Object payload, MigrationStats stats) {
+                CompletableFuture<Object> response = new CompletableFuture<Object>();
+                if (closed) {
+                        response.completeExceptionally(new IOException("Connection to " + host + " is closed"));
+                        return response;
+                }
+
+                int requestId = nextRequestId.incrementAndGet();
+                byte[] frame;
+                try {
+                        frame = Frame.encode(requestId, payload, stats);
+                } catch (IOException e) {
+                        // Only this payload is bad, the connection and the other requests on it are fine
+                        response.completeExceptionally(e);
+                        return response;
+                }
+
+                pending.put(requestId, response);
+                // A request given up on by its caller, e.g. after a timeout, no longer waits here
+                final int id = requestId;
+                response.whenComplete(new BiConsumer<Object, Throwable>() {
+                        public void accept(Object result, Throwable error) {
+                                pending.remove(id);
+                        }
+                });
+                lastUsed = System.currentTimeMillis();
+                try {
+                        synchronized (out) {
+                                out.write(frame);
+                                out.flush();
+                        }
+                } catch (IOException e) {
+                        pending.remove(requestId);
+                        response.completeExceptionally(e);
+                        close();
+                }
+                return response;
+        }
+
+        // Reader thread: match every incoming response to the request waiting for it
+        public void run() {
+                try {
+                        while (!closed) {
+                                Frame frame = Frame.read(in);
+                                CompletableFuture<Object> response = pending.remove(frame.getRequestId());
+                                if (response != null) {
+                                        response.complete(frame.getPayload());
+                                }
+                        }
+                } catch (IOException e) {
+                        // Connection dropped or closed, fail whatever is still waiting
+                } finally {
+                        close();
+                }
+        }
+
+        public boolean isClosed() {
+                return closed;
+        }
+
+        // A connection is idle when nothing is in flight and it has not been used for idleMillis
+        public boolean isIdle(long now, long idleMillis) {
+                return pending.isEmpty() && now - lastUsed > idleMillis;
+        }
+
+        public void close() {
+                if (closed) {
+                        return;
+                }
+                closed = true;
+                try {
+                        sock.close();
+                } catch (IOException e) {
+                        // nothing more we can do
+                }
+
+                Iterator<CompletableFuture<Object>> itr = pending.values().iterator();
+                while (itr.hasNext()) {
+                        itr.next().completeExceptionally(new IOException("Connection to " + host + " was closed"));
+                        itr.remove();
+                }
+        }
+}
@@ -0,0 +1,248 @@
+/**
+ * ConnectionPool: Keeps long-lived Connections per host so that requests
+ * between ProcessManagers don't pay a TCP handshake and stream setup each time.
+ * Broken connections are replaced on the next request and connections that have
+ * been idle for a while are closed in the background.
+ *
+ * Each host has two connections. A frame is written whole, so bulk transfers
+ * (processes, pre-copy deltas, file windows, up to the frame limit) go over one
+ * of their own, and control requests such as load reports and ps never queue
+ * behind them.
+ */
+
+package com.company;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+public class ConnectionPool {
+
+        // Close connections that have not been used for this long
+        public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+        // How long callAsync() waits for a response unless told otherwise
+        public static final long DEFAULT_ASYNC_TIMEOUT = 30 * 1000;
+
+        private int port;
+        private long idleTimeout;
+        private ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+        private ConcurrentHashMap<String, Connection> bulkConnections = new ConcurrentHashMap<String, Connection>();
+
+        // One lock per host, so connecting to a slow or dead host only holds up requests to that host
+        private ConcurrentHashMap<String, Object> connectLocks = new ConcurrentHashMap<String, Object>();
+        private ScheduledExecutorService evictor;
+
+        // Opens connections for callAsync() so a dead host never blocks the caller
+        private ExecutorService connector;
+
+        public ConnectionPool(int port) {
+                this(port, DEFAULT_IDLE_TIMEOUT);
+        }
+
+        public ConnectionPool(int port, long idleTimeout) {
+                this.port = port;
+                this.idleTimeout = idleTimeout;
+                this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "ConnectionPool-evictor");
+                                t.setDaemon(true);
+                                return t;
+                        }
+                });
+                this.evictor.scheduleWithFixedDelay(new Runnable() {
+                        public void run() {
+                                evictIdle();
+                        }
+                }, idleTimeout, idleTimeout / 2, TimeUnit.MILLISECONDS);
+                this.connector = Executors.newCachedThreadPool(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "ConnectionPool-connector");
+                                t.setDaemon(true);
+                                return t;
+                        }
+                });
+        }
+
+        /**
+         * get: Return the open connection to host that payload goes over,
+         * connecting if there is none or the previous one has failed
+         */
+        public Connection get(String host, Object payload) throws IOException {
+                ConcurrentHashMap<String, Connection> byHost = isBulk(payload) ? bulkConnections : connections;
+                Connection conn = byHost.get(host);
+                if (conn != null && !conn.isClosed()) {
+                        return conn;
+                }
+
+                Object lock = connectLocks.get(host);
+                if (lock == null) {
+                        Object created = new Object();
+                        lock = connectLocks.putIfAbsent(host, created);
+                        if (lock == null) {
+                                lock = created;
+                        }
+                }
+                synchronized (lock) {
+                        conn = byHost.get(host);
+                        if (conn == null || conn.isClosed()) {
+                                conn = new Connection(host, port);
+                                byHost.put(host, conn);
+                        }
+                        return conn;
+                }
+        }
+
+        // Payloads that may fill a frame, which go over the bulk connection
+        private static boolean isBulk(Object payload) {
+                return Frame.kindOf(payload) == Frame.KIND_MIGRATION;
+        }
+
+        /**
+         * call: Send payload to host and wait for the response
+         * @param timeout: Milliseconds to wait for the response, 0 waits until the connection fails
+         */
+        public Object call(String host, Object payload, long timeout) throws IOException {
+                return call(host, payload, timeout, null);
+        }
+
+        // As above, recording the encoded and compressed size of payload in stats
+        public Object call(String host, Object payload, long timeout, MigrationStats stats) throws IOException {
+                Connection conn = get(host, payload);
+                CompletableFuture<Object> response = conn.send(payload, stats);
+                if (response.isCompletedExceptionally() && conn.isClosed()) {
+                        // The request never made it onto the wire, so it is safe to retry on a new connection
+                        response = get(host, payload).send(payload, stats);
+                }
+
+                try {
+                        if (timeout > 0) {
+                                return response.get(timeout, TimeUnit.MILLISECONDS);
+                        }
+                        return response.get();
+                } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException) {
+                                throw (IOException) e.getCause();
+                        }
+                        throw new IOException(e.getCause());
+                } catch (TimeoutException e) {
+                        // Stop waiting for the response, the connection forgets the request
+                        response.cancel(false);
+                        throw new SocketTimeoutException("Timed out waiting for " + host);
+                } catch (InterruptedException e) {
+                        response.cancel(false);
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for " + host);
+                }
+        }
+
+        // callAsync with the default timeout
+        public CompletableFuture<Object> callAsync(String host, Object payload) {
+                return callAsync(host, payload, DEFAULT_ASYNC_TIMEOUT);
+        }
+
+        /**
+         * callAsync: Send payload to host without blocking, not even to connect
+         * @param timeout: Milliseconds to wait for the response, after which the future fails
+         * with a SocketTimeoutException
+         * @return A future completed with the response, or exceptionally with an IOException
+         */
+        public CompletableFuture<Object> callAsync(final String host, final Object payload, long timeout) {
+                final CompletableFuture<Object> response = new CompletableFuture<Object>();
+                final ScheduledFuture<?> expiry = evictor.schedule(new Runnable() {
+                        public void run() {
+                                response.completeExceptionally(new SocketTimeoutException("Timed out waiting for " + host));
+                        }
+                }, timeout, TimeUnit.MILLISECONDS);
+                response.whenComplete(new BiConsumer<Object, Throwable>() {
+                        public void accept(Object result, Throwable error) {
+                                expiry.cancel(false);
+                        }
+                });
+                connector.execute(new Runnable() {
+                        public void run() {
+                                try {
+                                        Connection conn = get(host, payload);
+                                        CompletableFuture<Object> sent = conn.send(payload);
+                                        if (sent.isCompletedExceptionally() && conn.isClosed()) {
+                                                sent = get(host, payload).send(payload);
+                                        }
+                                        // Once the caller has its answer or timed out, the connection forgets the request
+                                        final CompletableFuture<Object> request = sent;
+                                        response.whenComplete(new BiConsumer<Object, Throwable>() {
+                                                public void accept(Object result, Throwable error) {
+                                                        request.cancel(false);
+                                                }
+                                        });
+                                        sent.whenComplete(new BiConsumer<Object, Throwable>() {
+                                                public void accept(Object result, Throwable error) {
+                                                        if (error != null) {
+                                                                response.completeExceptionally(error instanceof CompletionException
+                                                                        ? error.getCause() : error);
+                                                        } else {
+                                                                response.complete(result);
+                                                        }
+                                                }
+                                        });
+                                } catch (IOException e) {
+                                        response.completeExceptionally(e);
+                                }
+                        }
+                });
+                return response;
+        }
+
+        // Close the connections to host, e.g. when it leaves the cluster
+        public void close(String host) {
+                Connection conn = connections.remove(host);
+                if (conn != null) {
+                        conn.close();
+                }
+                conn = bulkConnections.remove(host);
+                if (conn != null) {
+                        conn.close();
+                }
+        }
+
+        public void evictIdle() {
+                evictIdle(connections);
+                evictIdle(bulkConnections);
+        }
+
+        private void evictIdle(ConcurrentHashMap<String, Connection> byHost) {
+                long now = System.currentTimeMillis();
+                Iterator<Connection> itr = byHost.values().iterator();
+                while (itr.hasNext()) {
+                        Connection conn = itr.next();
+                        if (conn.isClosed() || conn.isIdle(now, idleTimeout)) {
+                                itr.remove();
+                                conn.close();
+                        }
+                }
+        }
+
+        public void shutdown() {
+                evictor.shutdownNow();
+                connector.shutdownNow();
+                Iterator<String> itr = connections.keySet().iterator();
+                while (itr.hasNext()) {
+                        close(itr.next());
+                }
+                itr = bulkConnections.keySet().iterator();
+                while (itr.hasNext()) {
+                        close(itr.next());
+                }
+        }
+}
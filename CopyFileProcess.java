@@ -10,9 +10,14 @@
 
 package com.company;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
-public class CopyFileProcess extends MigratableProcess {
+public class CopyFileProcess extends BatchProcess {
+
+	// Bytes handed to transferTo() in the first batch on a node
+	private static final int INITIAL_CHUNK = 8 * 1024 * 1024;
 
 	private TransactionalFileInputStream inFile;
 	private TransactionalFileOutputStream outFile;
@@ -29,41 +34,44 @@ public class CopyFileProcess extends MigratableProcess {
 		outFile = new TransactionalFileOutputStream(args[1]);
 	}
 
+	// One record per byte. Both streams record their new offsets, so a
+	// suspend between batches resumes exactly where we left off.
+	@Override
+	protected int processBatch(int maxRecords) throws IOException {
+		return (int) inFile.transferTo(outFile, maxRecords);
+	}
+
+	// Bytes are cheap records, so the first batch is a whole transferTo() chunk rather than 64 bytes
+	@Override
+	protected int initialBatchSize() {
+		return INITIAL_CHUNK;
+	}
+
+	// Copies are paced by the byte
 	@Override
-	public void run() {
-		try {
-			while (!suspend_flag && !should_quit) {
+	public String getRateUnit() {
+		return "bytes";
+	}
 
-                                // Read a byte from the input file
-				int read = inFile.read();
-				
-				if(read == -1)
-					break;
+	@Override
+	protected TransactionalFileInputStream[] getInputFiles() {
+		return new TransactionalFileInputStream[] { inFile };
+	}
 
-                                // write it to the output file
-				outFile.write(read);
-				
-				// Make copy take longer so that we don't require extremely large files for interesting results
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					// ignore it
-				}
-			}
-			
-			inFile.closeFile();
-			outFile.closeFile();
-                        suspend_flag = false;
-		} catch (IOException e) {
-			System.out.println("CopyFileProcess: Error: " + e);
-		} finally {
-                        signalListeners();
-                }
+	@Override
+	protected TransactionalFileOutputStream[] getOutputFiles() {
+		return new TransactionalFileOutputStream[] { outFile };
+	}
+
+	@Override
+	protected void writeState(DataOutput out) throws IOException {
+		inFile.writeState(out);
+		outFile.writeState(out);
 	}
 
 	@Override
-	public void migrationPreProcess() {
-		inFile.setFlag(true);
-		outFile.setFlag(true);
+	protected void readState(DataInput in) throws IOException {
+		inFile.readState(in);
+		outFile.readState(in);
 	}
 }
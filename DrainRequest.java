@@ -0,0 +1,8 @@
+/**
+ * DrainRequest: Service a request to move every process off the receiving host
+ */
+
+package com.company;
+
+public class DrainRequest extends Request {
+}
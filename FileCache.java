@@ -0,0 +1,135 @@
+/**
+ * FileCache: Local copies of files shipped along with migrated processes.
+ * A file is cached under <dir>/<source host>/<hash of path>-<name>, so the
+ * same file shipped again only costs the blocks that changed. Both names come
+ * from the request, so the host and the name are reduced to safe characters
+ * and prefixed with their hash, and neither can point outside the cache. A new copy is
+ * written to a ".part" file next to the cached one and renamed over it on
+ * COMMIT, since its PATCH windows refer to blocks of the old copy.
+ */
+package com.company;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class FileCache {
+
+        private File dir;
+
+        public FileCache(File dir) {
+                this.dir = dir;
+        }
+
+        // Cache under filecache.dir (default "filecache") in a directory of this host
+        public static FileCache fromProperties(String hostName) {
+                return new FileCache(new File(System.getProperty("filecache.dir", "filecache"), hostName));
+        }
+
+        /**
+         * handle: Serve one FileSyncRequest
+         * @return FileSignatures for SIGNATURES, a Response otherwise
+         */
+        public Object handle(FileSyncRequest request) {
+                File cached = cacheFile(request.getSourceHost(), request.getPath());
+                File part = new File(cached.getPath() + ".part");
+                try {
+                        switch (request.getPhase()) {
+                        case FileSyncRequest.SIGNATURES:
+                                return FileSignatures.compute(cached, cached.getAbsolutePath());
+                        case FileSyncRequest.PATCH:
+                                patch(cached, part, request.getDelta());
+                                return new Response(0);
+                        case FileSyncRequest.COMMIT:
+                                if (cached.exists() && !cached.delete()) {
+                                        throw new IOException("Could not replace " + cached);
+                                }
+                                if (!part.renameTo(cached)) {
+                                        throw new IOException("Could not replace " + cached);
+                                }
+                                return new Response(0);
+                        default:
+                                return new Response(-1);
+                        }
+                } catch (IOException e) {
+                        System.err.println("File cache error for " + request.getPath() + ": " + e.getMessage());
+                        return new Response(-1);
+                }
+        }
+
+        public File cacheFile(String sourceHost, String path) {
+                return new File(new File(dir, safeName(sourceHost)), safeName(path));
+        }
+
+        // Hash of a name and its last component with anything but letters, digits, '.', '-' and '_' replaced
+        private static String safeName(String name) {
+                return hash(name) + "-" + new File(name).getName().replaceAll("[^A-Za-z0-9._-]", "_");
+        }
+
+        private static String hash(String path) {
+                try {
+                        byte[] digest = MessageDigest.getInstance("SHA-1").digest(path.getBytes(StandardCharsets.UTF_8));
+                        StringBuilder hex = new StringBuilder();
+                        for (int i = 0; i < 8; i++) {
+                                hex.append(String.format("%02x", digest[i] & 0xFF));
+                        }
+                        return hex.toString();
+                } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException("SHA-1 is not available", e);
+                }
+        }
+
+        /**
+         * patch: Rebuild one window of the new copy from the old copy and the delta.
+         * The part file is cut at the window's offset first, so windows must come in order.
+         */
+        private void patch(File cached, File part, FileDelta delta) throws IOException {
+                File parent = part.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                        throw new IOException("Could not create cache directory " + parent);
+                }
+
+                long length = delta.getLength();
+                if (length > Integer.MAX_VALUE) {
+                        throw new IOException("File window too large: " + length);
+                }
+                byte[] window = new byte[(int) length];
+                int blockSize = delta.getBlockSize();
+                int pos = 0;
+                int dataPos = 0;
+
+                RandomAccessFile base = cached.isFile() ? new RandomAccessFile(cached, "r") : null;
+                try {
+                        for (int op : delta.getOps()) {
+                                if (op >= 0) {
+                                        if (base == null) {
+                                                throw new IOException("Block " + op + " of a file that is not cached");
+                                        }
+                                        base.seek((long) op * blockSize);
+                                        base.readFully(window, pos, blockSize);
+                                        pos += blockSize;
+                                } else {
+                                        System.arraycopy(delta.getData(), dataPos, window, pos, -op);
+                                        dataPos += -op;
+                                        pos += -op;
+                                }
+                        }
+                } finally {
+                        if (base != null) {
+                                base.close();
+                        }
+                }
+
+                RandomAccessFile out = new RandomAccessFile(part, "rw");
+                try {
+                        out.setLength(delta.getOffset());
+                        out.seek(delta.getOffset());
+                        out.write(window);
+                } finally {
+                        out.close();
+                }
+        }
+}
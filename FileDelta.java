@@ -0,0 +1,156 @@
+/**
+ * FileDelta: One window of a file to ship, expressed against the FileSignatures
+ * of the copy the target already has. Each op is either a block of the target's
+ * copy (op >= 0, the block index) or -op bytes of literal data taken in order
+ * from data. Matching uses the rsync rolling checksum, so a block is found at
+ * any byte offset and not only at multiples of the block size.
+ */
+package com.company;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+
+public class FileDelta implements Serializable {
+
+        // File offset the window starts at
+        private long offset;
+        private int blockSize;
+        private int[] ops;
+        private byte[] data;
+
+        public FileDelta(long offset, int blockSize, int[] ops, byte[] data) {
+                this.offset = offset;
+                this.blockSize = blockSize;
+                this.ops = ops;
+                this.data = data;
+        }
+
+        /**
+         * compute: Encode window[0, length), which sits at offset in the source
+         * file, as blocks of the target's copy plus literal data
+         */
+        public static FileDelta compute(byte[] window, int length, long offset, FileSignatures signatures) {
+                int blockSize = signatures.getBlockSize();
+                MessageDigest md5 = FileSignatures.md5();
+                IntList ops = new IntList();
+                ByteArrayOutputStream literal = new ByteArrayOutputStream();
+
+                int literalStart = 0;
+                int pos = 0;
+                int a = 0;
+                int b = 0;
+                boolean haveSum = false;
+                while (signatures.getWeak().length > 0 && pos + blockSize <= length) {
+                        if (!haveSum) {
+                                a = 0;
+                                b = 0;
+                                for (int i = 0; i < blockSize; i++) {
+                                        a += window[pos + i] & 0xFF;
+                                        b += (blockSize - i) * (window[pos + i] & 0xFF);
+                                }
+                                a &= 0xFFFF;
+                                b &= 0xFFFF;
+                                haveSum = true;
+                        }
+
+                        // The strong checksum is only worth computing on a weak match
+                        int block = signatures.firstBlock(a | (b << 16));
+                        if (block >= 0) {
+                                long sum = FileSignatures.strongSum(md5, window, pos, blockSize);
+                                while (block >= 0 && signatures.getStrong()[block] != sum) {
+                                        block = signatures.nextBlock(block);
+                                }
+                        }
+                        if (block >= 0) {
+                                addLiteral(ops, literal, window, literalStart, pos);
+                                ops.add(block);
+                                pos += blockSize;
+                                literalStart = pos;
+                                haveSum = false;
+                        } else {
+                                if (pos + blockSize < length) {
+                                        // Roll the checksum one byte forward
+                                        int out = window[pos] & 0xFF;
+                                        int in = window[pos + blockSize] & 0xFF;
+                                        a = (a - out + in) & 0xFFFF;
+                                        b = (b - blockSize * out + a) & 0xFFFF;
+                                }
+                                pos++;
+                        }
+                }
+                addLiteral(ops, literal, window, literalStart, length);
+                return new FileDelta(offset, blockSize, ops.toArray(), literal.toByteArray());
+        }
+
+        private static void addLiteral(IntList ops, ByteArrayOutputStream literal, byte[] window, int start, int end) {
+                if (end > start) {
+                        ops.add(start - end);
+                        literal.write(window, start, end - start);
+                }
+        }
+
+        // rsync weak checksum of b[off, off + len)
+        static int weakSum(byte[] b, int off, int len) {
+                int a = 0;
+                int s = 0;
+                for (int i = 0; i < len; i++) {
+                        a += b[off + i] & 0xFF;
+                        s += (len - i) * (b[off + i] & 0xFF);
+                }
+                return (a & 0xFFFF) | ((s & 0xFFFF) << 16);
+        }
+
+        // Growable int array for the ops
+        private static class IntList {
+                private int[] values = new int[64];
+                private int size;
+
+                void add(int value) {
+                        if (size == values.length) {
+                                int[] grown = new int[size * 2];
+                                System.arraycopy(values, 0, grown, 0, size);
+                                values = grown;
+                        }
+                        values[size++] = value;
+                }
+
+                int[] toArray() {
+                        int[] result = new int[size];
+                        System.arraycopy(values, 0, result, 0, size);
+                        return result;
+                }
+        }
+
+        public long getOffset() {
+                return offset;
+        }
+
+        public int getBlockSize() {
+                return blockSize;
+        }
+
+        public int[] getOps() {
+                return ops;
+        }
+
+        public byte[] getData() {
+                return data;
+        }
+
+        // Bytes of the window this delta rebuilds
+        public long getLength() {
+                long length = data.length;
+                for (int op : ops) {
+                        if (op >= 0) {
+                                length += blockSize;
+                        }
+                }
+                return length;
+        }
+
+        // Literal bytes this delta carries
+        public int size() {
+                return data.length;
+        }
+}
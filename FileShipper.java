@@ -0,0 +1,148 @@
+/**
+ * FileShipper: Ships the files of a migrating process to the FileCache of the
+ * target, for clusters without a shared filesystem. Only the unread part of
+ * each input file and the written part of each output file are shipped, in
+ * windows of WINDOW_SIZE bytes, and only blocks the target's cached copy does
+ * not already have travel as literal data. The process sent to the target is
+ * a copy whose streams point at the cached files.
+ *
+ * Turned on with -Dmigration.shipFiles=true.
+ */
+package com.company;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FileShipper {
+
+        // Largest part of a file sent in one PATCH request
+        public static final int WINDOW_SIZE = 16 * 1024 * 1024;
+
+        // How long to wait for the target to answer one step of a transfer
+        private static final long REQUEST_TIMEOUT = 60 * 1000;
+
+        private ConnectionPool connectionPool;
+        private String hostName;
+
+        // Bytes sent as literal data and bytes the target already had, for the last ship()
+        private long literalBytes;
+        private long matchedBytes;
+
+        public FileShipper(ConnectionPool connectionPool, String hostName) {
+                this.connectionPool = connectionPool;
+                this.hostName = hostName;
+        }
+
+        // @return null unless migration.shipFiles is set
+        public static FileShipper fromProperties(ConnectionPool connectionPool, String hostName) {
+                if (!Boolean.getBoolean("migration.shipFiles")) {
+                        return null;
+                }
+                return new FileShipper(connectionPool, hostName);
+        }
+
+        /**
+         * ship: Bring the target's copies of the process' files up to date.
+         * The process must be suspended and migrationPreProcess() called, so
+         * that its output has been flushed.
+         * @return The process to send, with its streams relocated to the target's cache
+         */
+        public MigratableProcess ship(MigratableProcess process, String host) throws IOException {
+                Map<String, String> relocated = shipFiles(process, host);
+                if (relocated.isEmpty()) {
+                        return process;
+                }
+
+                // Relocate a copy, so the original still works here if the migration fails
+                MigratableProcess copy = (MigratableProcess) MessageCodec.fromBytes(MessageCodec.toBytes(process));
+                for (TransactionalFileInputStream in : copy.getInputFiles()) {
+                        String path = relocated.get(in.getFilePath());
+                        if (path != null) {
+                                in.setFilePath(path);
+                        }
+                }
+                for (TransactionalFileOutputStream out : copy.getOutputFiles()) {
+                        String path = relocated.get(out.getFilePath());
+                        if (path != null) {
+                                out.setFilePath(path);
+                        }
+                }
+                return copy;
+        }
+
+        /**
+         * shipFiles: Sync the process' files to the target without touching the process.
+         * On a running process this warms the target's cache ahead of the real ship().
+         * @return Path of each shipped file on the target, by its path here
+         */
+        public synchronized Map<String, String> shipFiles(MigratableProcess process, String host) throws IOException {
+                literalBytes = 0;
+                matchedBytes = 0;
+                Map<String, String> relocated = new HashMap<String, String>();
+
+                for (TransactionalFileInputStream in : process.getInputFiles()) {
+                        File file = new File(in.getFilePath());
+                        if (file.isFile()) {
+                                relocated.put(in.getFilePath(), shipRange(host, file, in.getFileOffset(), file.length()));
+                        }
+                }
+                for (TransactionalFileOutputStream out : process.getOutputFiles()) {
+                        File file = new File(out.getFilePath());
+                        relocated.put(out.getFilePath(), shipRange(host, file, 0, out.getFileOffset()));
+                }
+                if (!relocated.isEmpty()) {
+                        System.out.println("Shipped " + relocated.size() + " file(s) to " + host + ": " + literalBytes
+                                + " bytes sent, " + matchedBytes + " bytes already there");
+                }
+                return relocated;
+        }
+
+        /**
+         * shipRange: Sync bytes [start, end) of file into the target's cache
+         * @return Path of the cached copy on the target
+         */
+        private String shipRange(String host, File file, long start, long end) throws IOException {
+                String path = file.getPath();
+                Object resp = connectionPool.call(host, new FileSyncRequest(FileSyncRequest.SIGNATURES, hostName, path, null),
+                        REQUEST_TIMEOUT);
+                if (!(resp instanceof FileSignatures)) {
+                        throw new IOException(host + " could not read its cached copy of " + path);
+                }
+                FileSignatures signatures = (FileSignatures) resp;
+
+                RandomAccessFile raf = file.isFile() ? new RandomAccessFile(file, "r") : null;
+                try {
+                        byte[] window = new byte[(int) Math.max(0, Math.min(WINDOW_SIZE, end - start))];
+                        long pos = start;
+                        do {
+                                int len = (int) Math.max(0, Math.min(WINDOW_SIZE, end - pos));
+                                if (len > 0) {
+                                        raf.seek(pos);
+                                        raf.readFully(window, 0, len);
+                                }
+                                FileDelta delta = FileDelta.compute(window, len, pos, signatures);
+                                call(host, new FileSyncRequest(FileSyncRequest.PATCH, hostName, path, delta));
+                                literalBytes += delta.size();
+                                matchedBytes += len - delta.size();
+                                pos += len;
+                        } while (pos < end);
+                } finally {
+                        if (raf != null) {
+                                raf.close();
+                        }
+                }
+
+                call(host, new FileSyncRequest(FileSyncRequest.COMMIT, hostName, path, null));
+                return signatures.getCachePath();
+        }
+
+        private void call(String host, FileSyncRequest request) throws IOException {
+                Response resp = (Response) connectionPool.call(host, request, REQUEST_TIMEOUT);
+                if (resp.getErrorCode() != 0) {
+                        throw new IOException(host + " could not update its cached copy of " + request.getPath());
+                }
+        }
+}
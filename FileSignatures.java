@@ -0,0 +1,134 @@
+/**
+ * FileSignatures: Block checksums of a file in the target's FileCache, sent
+ * back to the source of a migration so it only has to ship the blocks the
+ * target does not already hold. Each full block has a weak rolling checksum
+ * (see FileDelta) and a strong one (the first 8 bytes of its MD5). A short
+ * last block is left out and always sent as literal data.
+ */
+package com.company;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FileSignatures extends Response {
+
+        // Block size bounds, the actual size grows with the square root of the file length
+        public static final int MIN_BLOCK_SIZE = 2 * 1024;
+        public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+        private String cachePath;
+        private int blockSize;
+        private int[] weak;
+        private long[] strong;
+
+        // Weak checksum to first block index, and the next block with the same weak checksum
+        private transient Map<Integer, Integer> index;
+        private transient int[] next;
+
+        public FileSignatures(int errorCode, String cachePath, int blockSize, int[] weak, long[] strong) {
+                super(errorCode);
+                this.cachePath = cachePath;
+                this.blockSize = blockSize;
+                this.weak = weak;
+                this.strong = strong;
+        }
+
+        /**
+         * compute: Signatures of every full block of file, no blocks if it does not exist
+         * @param cachePath The path the file is known by on this node
+         */
+        public static FileSignatures compute(File file, String cachePath) throws IOException {
+                long length = file.isFile() ? file.length() : 0;
+                int blockSize = blockSizeFor(length);
+                int count = (int) Math.min(length / blockSize, Integer.MAX_VALUE);
+                int[] weak = new int[count];
+                long[] strong = new long[count];
+
+                if (count > 0) {
+                        RandomAccessFile raf = new RandomAccessFile(file, "r");
+                        try {
+                                byte[] block = new byte[blockSize];
+                                MessageDigest md5 = md5();
+                                for (int i = 0; i < count; i++) {
+                                        raf.readFully(block);
+                                        weak[i] = FileDelta.weakSum(block, 0, blockSize);
+                                        strong[i] = strongSum(md5, block, 0, blockSize);
+                                }
+                        } finally {
+                                raf.close();
+                        }
+                }
+                return new FileSignatures(0, cachePath, blockSize, weak, strong);
+        }
+
+        static int blockSizeFor(long length) {
+                long size = (long) Math.sqrt((double) length);
+                size = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+                return (int) (Long.highestOneBit(size));
+        }
+
+        static MessageDigest md5() {
+                try {
+                        return MessageDigest.getInstance("MD5");
+                } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException("MD5 is not available", e);
+                }
+        }
+
+        static long strongSum(MessageDigest md5, byte[] b, int off, int len) {
+                md5.reset();
+                md5.update(b, off, len);
+                byte[] digest = md5.digest();
+                long sum = 0;
+                for (int i = 0; i < 8; i++) {
+                        sum = (sum << 8) | (digest[i] & 0xFF);
+                }
+                return sum;
+        }
+
+        /**
+         * firstBlock: First block with this weak checksum, walk the rest with nextBlock()
+         * @return The block index, or -1 if there is none
+         */
+        public int firstBlock(int weakSum) {
+                if (index == null) {
+                        buildIndex();
+                }
+                Integer head = index.get(weakSum);
+                return head == null ? -1 : head;
+        }
+
+        public int nextBlock(int block) {
+                return next[block];
+        }
+
+        private void buildIndex() {
+                index = new HashMap<Integer, Integer>(weak.length * 2);
+                next = new int[weak.length];
+                for (int block = weak.length - 1; block >= 0; block--) {
+                        Integer head = index.put(weak[block], block);
+                        next[block] = head == null ? -1 : head;
+                }
+        }
+
+        public String getCachePath() {
+                return cachePath;
+        }
+
+        public int getBlockSize() {
+                return blockSize;
+        }
+
+        public int[] getWeak() {
+                return weak;
+        }
+
+        public long[] getStrong() {
+                return strong;
+        }
+}
@@ -0,0 +1,42 @@
+/**
+ * FileSyncRequest: One step of shipping a file to the FileCache of the target
+ * of a migration. SIGNATURES asks for the FileSignatures of the target's copy,
+ * PATCH writes one FileDelta window of the new copy and COMMIT makes the new
+ * copy the cached one. Files are identified by the source host and path.
+ */
+package com.company;
+
+public class FileSyncRequest extends Request {
+
+        public static final int SIGNATURES = 0;
+        public static final int PATCH = 1;
+        public static final int COMMIT = 2;
+
+        private int phase;
+        private String sourceHost;
+        private String path;
+        private FileDelta delta;
+
+        public FileSyncRequest(int phase, String sourceHost, String path, FileDelta delta) {
+                this.phase = phase;
+                this.sourceHost = sourceHost;
+                this.path = path;
+                this.delta = delta;
+        }
+
+        public int getPhase() {
+                return phase;
+        }
+
+        public String getSourceHost() {
+                return sourceHost;
+        }
+
+        public String getPath() {
+                return path;
+        }
+
+        public FileDelta getDelta() {
+                return delta;
+        }
+}
@@ -0,0 +1,180 @@
+/**
+ * Frame: A single message on a node-to-node connection.
+ * On the wire a frame is [varint length][byte kind][varint requestId][byte codec]
+ * [varint original length, if compressed][payload], where the payload is a Request,
+ * Response or MigratableProcess encoded with MessageCodec. The requestId lets several
+ * requests share one connection and have their responses matched back. The kind tells
+ * the Server which lane to hand the frame to without decoding it. Process payloads
+ * are compressed with a codec picked by their size (see Compression).
+ */
+
+package com.company;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+public class Frame {
+
+        // Refuse frames bigger than this (frame.maxSize, default 64 MB), so that a corrupt
+        // stream or a hostile peer cannot make us allocate a huge body. The limit holds for
+        // the uncompressed message too. Shipped files are sent in windows well below it.
+        public static final int MAX_FRAME_SIZE = Integer.getInteger("frame.maxSize", 64 * 1024 * 1024);
+
+        // Frame kinds: ordinary control traffic, anything that moves a process here, or a
+        // command to move processes away, which waits on the migration lane of another node
+        public static final byte KIND_CONTROL = 0;
+        public static final byte KIND_MIGRATION = 1;
+        public static final byte KIND_COMMAND = 2;
+
+        // Smallest valid body: kind, requestId, codec and a payload of at least version and type
+        public static final int MIN_FRAME_SIZE = 5;
+
+        private int requestId;
+        private Object payload;
+
+        public Frame(int requestId, Object payload) {
+                this.requestId = requestId;
+                this.payload = payload;
+        }
+
+        public int getRequestId() {
+                return requestId;
+        }
+
+        public Object getPayload() {
+                return payload;
+        }
+
+        /**
+         * encode: Encode the payload into a complete frame, length prefix included
+         */
+        public static byte[] encode(int requestId, Object payload) throws IOException {
+                return encode(requestId, payload, null);
+        }
+
+        /**
+         * encode: As above, and record the size and compression cost in stats if it is not null
+         */
+        public static byte[] encode(int requestId, Object payload, MigrationStats stats) throws IOException {
+                byte[] message = MessageCodec.toBytes(payload);
+
+                // Only process state and shipped file data are big enough to be worth compressing
+                byte codec = Compression.NONE;
+                byte[] compressed = message;
+                long cpuTime = 0;
+                if (payload instanceof MigratableProcess || payload instanceof PrecopyRequest
+                                || payload instanceof FileSyncRequest || payload instanceof ProcessBatch) {
+                        codec = Compression.choose(message.length);
+                        if (codec != Compression.NONE) {
+                                long start = cpuTime();
+                                compressed = Compression.compress(codec, message, 0, message.length);
+                                cpuTime = cpuTime() - start;
+                                if (compressed.length >= message.length) {
+                                        codec = Compression.NONE;
+                                        compressed = message;
+                                }
+                        }
+                }
+                if (stats != null) {
+                        stats.record(message.length, compressed.length, codec, cpuTime);
+                }
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream(compressed.length + 16);
+                DataOutputStream data = new DataOutputStream(body);
+                data.writeByte(kindOf(payload));
+                WireFormat.writeVarInt(data, requestId);
+                data.writeByte(codec);
+                if (codec != Compression.NONE) {
+                        WireFormat.writeVarInt(data, message.length);
+                }
+                data.write(compressed);
+                data.flush();
+                if (body.size() > MAX_FRAME_SIZE || message.length > MAX_FRAME_SIZE) {
+                        // The other side would refuse it and drop the connection
+                        throw new IOException("Message of " + Math.max(body.size(), message.length)
+                                + " bytes is larger than the frame limit of " + MAX_FRAME_SIZE);
+                }
+
+                ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 5);
+                WireFormat.writeVarInt(new DataOutputStream(frame), body.size());
+                body.writeTo(frame);
+                return frame.toByteArray();
+        }
+
+        // Incoming processes and file shipping travel in the migration lane. Requests to send
+        // processes away get their own lane, so two nodes migrating to each other never wait
+        // for a lane that is busy waiting for them.
+        public static byte kindOf(Object payload) {
+                if (payload instanceof MigratableProcess || payload instanceof PrecopyRequest
+                                || payload instanceof FileSyncRequest || payload instanceof ProcessBatch) {
+                        return KIND_MIGRATION;
+                }
+                if (payload instanceof MigrateRequest || payload instanceof DrainRequest) {
+                        return KIND_COMMAND;
+                }
+                return KIND_CONTROL;
+        }
+
+        // Kind of an encoded frame, read from its body without decoding the payload
+        public static byte kindOf(byte[] body) {
+                return body[0];
+        }
+
+        // Request ID of an encoded frame, read from its header without decoding the payload
+        public static int requestIdOf(byte[] body) throws IOException {
+                return WireFormat.readVarInt(new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1)));
+        }
+
+        /**
+         * decode: Rebuild a frame from its body (everything after the length prefix)
+         */
+        public static Frame decode(byte[] body, int offset, int length) throws IOException {
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(body, offset, length));
+                data.readByte();
+                int requestId = WireFormat.readVarInt(data);
+                byte codec = data.readByte();
+                if (codec != Compression.NONE) {
+                        int originalLength = WireFormat.readVarInt(data);
+                        // The output buffer is sized from this, so it is held to the frame limit as well
+                        if (originalLength < 0 || originalLength > MAX_FRAME_SIZE) {
+                                throw new IOException("Invalid uncompressed length " + originalLength);
+                        }
+                        int start = offset + length - data.available();
+                        byte[] message = Compression.decompress(codec, body, start, data.available(), originalLength);
+                        data = new DataInputStream(new ByteArrayInputStream(message));
+                }
+                return new Frame(requestId, MessageCodec.decodeMessage(data));
+        }
+
+        // CPU time of the current thread where the JVM can measure it, wall time otherwise
+        private static long cpuTime() {
+                ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                if (threads.isCurrentThreadCpuTimeSupported()) {
+                        return threads.getCurrentThreadCpuTime();
+                }
+                return System.nanoTime();
+        }
+
+        // Check a length prefix before allocating a body for it
+        public static void checkLength(long length) throws IOException {
+                if (length < MIN_FRAME_SIZE || length > MAX_FRAME_SIZE) {
+                        throw new IOException("Invalid frame length " + length);
+                }
+        }
+
+        /**
+         * read: Block until a whole frame has been read from in
+         */
+        public static Frame read(DataInputStream in) throws IOException {
+                int length = WireFormat.readVarInt(in);
+                checkLength(length);
+                byte[] body = new byte[length];
+                in.readFully(body);
+                return decode(body, 0, length);
+        }
+}
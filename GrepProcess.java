@@ -6,16 +6,16 @@
  */
 
 package com.company;
-import java.io.EOFException;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.lang.Thread;
-import java.lang.InterruptedException;
 
 @SuppressWarnings("serial")
-public class GrepProcess extends MigratableProcess {
+public class GrepProcess extends BatchProcess {
 	private TransactionalFileInputStream  inFile;
 	private TransactionalFileOutputStream outFile;
 	private String query;
+	private transient LineMatcher matcher;
 
 	public GrepProcess(String args[]) throws Exception {
 		super(args);
@@ -26,44 +26,48 @@ public class GrepProcess extends MigratableProcess {
 		}
 		
 		query = args[0];
-		inFile = new TransactionalFileInputStream(args[1]);
+		// grep only scans its input, read it through the page cache
+		inFile = new TransactionalFileInputStream(args[1], true);
 		outFile = new TransactionalFileOutputStream(args[2]);
 	}
 
+	// One record per line
 	@Override
-	public void run() {
-		try {
-			while (!suspend_flag && !should_quit) {
-				String line = inFile.readLine();
-				if (line == null) break;
-				
-				if (line.contains(query)) {
-					outFile.writeString(line);
-				}
-				
-				// Make grep take longer so that we don't require extremely large files for interesting results
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					// ignore it
-				}
+	protected int processBatch(int maxRecords) throws IOException {
+		if (matcher == null) {
+			matcher = LineMatcher.literal(query);
+		}
+		for (int n = 0; n < maxRecords; n++) {
+			CharSequence line = inFile.readLineView();
+			if (line == null)
+				return n > 0 ? n : -1;
+
+			if (matcher.matches(line)) {
+				outFile.writeString(line);
 			}
-			
-			inFile.closeFile();
-			outFile.closeFile();
-                        suspend_flag = false;
-		} catch (EOFException e) {
-			//End of File
-		} catch (IOException e) {
-			System.out.println ("GrepProcess: Error: " + e);
-		} finally {
-			signalListeners();
-                }
+		}
+		return maxRecords;
+	}
+
+	@Override
+	protected TransactionalFileInputStream[] getInputFiles() {
+		return new TransactionalFileInputStream[] { inFile };
+	}
+
+	@Override
+	protected TransactionalFileOutputStream[] getOutputFiles() {
+		return new TransactionalFileOutputStream[] { outFile };
+	}
+
+	@Override
+	protected void writeState(DataOutput out) throws IOException {
+		inFile.writeState(out);
+		outFile.writeState(out);
 	}
 
 	@Override
-	public void migrationPreProcess() {
-		inFile.setFlag(true);
-		outFile.setFlag(true);
+	protected void readState(DataInput in) throws IOException {
+		inFile.readState(in);
+		outFile.readState(in);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,279 @@
+/**
+ * HostDrain: Moves every running process off this node, to take it out of
+ * service. All processes are asked to suspend at once, and each is given to
+ * the least loaded of the other hosts, using the LoadBalancer's reports and
+ * counting the processes already handed out. Hosts without a recent report
+ * may be down and are left out. A target's share is sent as
+ * one ProcessBatch as soon as all of it is suspended, so the transfers to
+ * different targets overlap with each other and with slow suspends.
+ *
+ * Downtime of a process runs from its suspend request until its target
+ * confirms that it started it.
+ */
+package com.company;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public class HostDrain {
+
+        // Most suspends waited on at the same time
+        private static final int MAX_PARALLEL_SUSPENDS = 32;
+
+        private ProcessManager pm;
+        private ConnectionPool connectionPool;
+        private FileShipper fileShipper;
+        private String hostName;
+
+        // When each process was asked to suspend, and its downtime in milliseconds once moved
+        private ConcurrentHashMap<MigratableProcess, Long> suspendStart =
+                new ConcurrentHashMap<MigratableProcess, Long>();
+        private ConcurrentHashMap<MigratableProcess, Double> downtime =
+                new ConcurrentHashMap<MigratableProcess, Double>();
+
+        public HostDrain(ProcessManager pm, ConnectionPool connectionPool, FileShipper fileShipper, String hostName) {
+                this.pm = pm;
+                this.connectionPool = connectionPool;
+                this.fileShipper = fileShipper;
+                this.hostName = hostName;
+        }
+
+        /**
+         * drain: Move all running processes to the other hosts and print a report
+         * @return 0 if every process was moved, -1 otherwise
+         */
+        public int drain() {
+                long start = System.nanoTime();
+                List<String> targets = pm.getHosts();
+                targets.remove(hostName);
+                if (targets.isEmpty()) {
+                        System.out.println("There is no other host to drain to.");
+                        return -1;
+                }
+
+                // Only drain to hosts known to be up, a host without a recent report may be down
+                Map<String, LoadReport> load = new LinkedHashMap<String, LoadReport>();
+                for (String target : targets) {
+                        LoadReport report = pm.getLoadBalancer().getReport(target);
+                        if (report != null) {
+                                load.put(target, report);
+                        } else {
+                                System.out.println(target + " has not reported its load recently, not draining to it.");
+                        }
+                }
+                if (load.isEmpty()) {
+                        System.out.println("No other host has reported its load recently, nothing to drain to.");
+                        return -1;
+                }
+
+                // Claim the processes, so nothing else migrates them meanwhile
+                ProcessTable table = pm.getProcessTable();
+                List<MigratableProcess> processes = new ArrayList<MigratableProcess>();
+                for (MigratableProcess process : table.byState(ProcessTable.State.RUNNING)) {
+                        if (table.setState(process, ProcessTable.State.RUNNING, ProcessTable.State.MIGRATING)) {
+                                processes.add(process);
+                        }
+                }
+                if (processes.isEmpty()) {
+                        System.out.println("No processes to drain.");
+                        return 0;
+                }
+
+                Map<String, List<MigratableProcess>> shares = assign(processes, load);
+                // Runs the suspends, and the restarts after a failed transfer off the connection threads
+                ExecutorService drainExecutor = Executors.newFixedThreadPool(
+                        Math.min(processes.size(), MAX_PARALLEL_SUSPENDS), new ThreadFactory() {
+                                public Thread newThread(Runnable r) {
+                                        Thread t = new Thread(r, "HostDrain");
+                                        t.setDaemon(true);
+                                        return t;
+                                }
+                        });
+
+                List<CompletableFuture<Integer>> transfers = new ArrayList<CompletableFuture<Integer>>();
+                try {
+                        Iterator<Map.Entry<String, List<MigratableProcess>>> itr = shares.entrySet().iterator();
+                        while (itr.hasNext()) {
+                                Map.Entry<String, List<MigratableProcess>> share = itr.next();
+                                transfers.add(transfer(share.getKey(), share.getValue(), drainExecutor));
+                        }
+
+                        int failed = 0;
+                        for (CompletableFuture<Integer> transfer : transfers) {
+                                failed += transfer.join();
+                        }
+                        report(processes, shares, failed, (System.nanoTime() - start) / 1e6);
+                        return failed == 0 ? 0 : -1;
+                } finally {
+                        drainExecutor.shutdown();
+                }
+        }
+
+        // Give each process to the host that is least loaded with the processes assigned so far
+        private Map<String, List<MigratableProcess>> assign(List<MigratableProcess> processes,
+                        Map<String, LoadReport> load) {
+                Map<String, List<MigratableProcess>> shares = new LinkedHashMap<String, List<MigratableProcess>>();
+                for (String target : load.keySet()) {
+                        shares.put(target, new ArrayList<MigratableProcess>());
+                }
+
+                for (MigratableProcess process : processes) {
+                        LoadReport least = null;
+                        for (LoadReport report : load.values()) {
+                                if (least == null || report.score() < least.score()) {
+                                        least = report;
+                                }
+                        }
+                        shares.get(least.getHost()).add(process);
+                        load.put(least.getHost(), least.withProcesses(1));
+                }
+                return shares;
+        }
+
+        // Suspend a share in parallel, then send what did suspend as one batch
+        private CompletableFuture<Integer> transfer(final String target, List<MigratableProcess> share,
+                        final ExecutorService drainExecutor) {
+                final List<CompletableFuture<MigratableProcess>> suspends =
+                        new ArrayList<CompletableFuture<MigratableProcess>>();
+                for (final MigratableProcess process : share) {
+                        suspends.add(CompletableFuture.supplyAsync(new Supplier<MigratableProcess>() {
+                                public MigratableProcess get() {
+                                        return suspend(process);
+                                }
+                        }, drainExecutor));
+                }
+
+                return CompletableFuture.allOf(suspends.toArray(new CompletableFuture<?>[0]))
+                        .thenComposeAsync(new Function<Void, CompletableFuture<Integer>>() {
+                                public CompletableFuture<Integer> apply(Void ignored) {
+                                        List<MigratableProcess> batch = new ArrayList<MigratableProcess>();
+                                        for (CompletableFuture<MigratableProcess> suspend : suspends) {
+                                                if (suspend.join() != null) {
+                                                        batch.add(suspend.join());
+                                                }
+                                        }
+                                        return send(target, batch, drainExecutor);
+                                }
+                        }, drainExecutor);
+        }
+
+        // @return the process ready to send, or null if it did not reach a safe point or has finished
+        private MigratableProcess suspend(MigratableProcess process) {
+                // suspend() also succeeds for a process that has finished, there is nothing to move then
+                if (process.isFinished()) {
+                        System.out.println("Process " + process.getProcID() + " has finished, it is not moved.");
+                        return null;
+                }
+                suspendStart.put(process, System.nanoTime());
+                try {
+                        if (process.suspend()) {
+                                if (process.isCompleted()) {
+                                        System.out.println("Process " + process.getProcID() + " has finished, "
+                                                + "it is not moved.");
+                                        return null;
+                                }
+                                pm.recordSuspendLatency(process.getLastSuspendLatency());
+                                process.migrationPreProcess();
+                                return process;
+                        }
+                        System.out.println("Process " + process.getProcID() + " did not reach a safe point in time, "
+                                + "it stays here.");
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                }
+                pm.getProcessTable().setState(process, ProcessTable.State.MIGRATING, ProcessTable.State.RUNNING);
+                return null;
+        }
+
+        // @return a future of the number of processes that could not be moved
+        private CompletableFuture<Integer> send(final String target, final List<MigratableProcess> batch,
+                        ExecutorService drainExecutor) {
+                if (batch.isEmpty()) {
+                        return CompletableFuture.completedFuture(0);
+                }
+
+                List<MigratableProcess> payload = new ArrayList<MigratableProcess>(batch.size());
+                try {
+                        for (MigratableProcess process : batch) {
+                                payload.add(fileShipper != null ? fileShipper.ship(process, target) : process);
+                        }
+                } catch (IOException e) {
+                        System.out.println("Could not ship files to " + target + ": " + e.getMessage());
+                        return CompletableFuture.completedFuture(restartAll(batch));
+                }
+
+                return connectionPool.callAsync(target, new ProcessBatch(payload))
+                        .handleAsync(new BiFunction<Object, Throwable, Integer>() {
+                                public Integer apply(Object resp, Throwable error) {
+                                        if (error instanceof SocketTimeoutException) {
+                                                // The target may still start them, running them here too would mean two copies
+                                                System.out.println(target + ": Did not confirm the drained processes in time.");
+                                                return batch.size();
+                                        }
+                                        if (error != null || !(resp instanceof Response)
+                                                        || ((Response) resp).getErrorCode() != 0) {
+                                                System.out.println(target + ": Failed to restart the drained processes.");
+                                                return restartAll(batch);
+                                        }
+                                        long end = System.nanoTime();
+                                        for (MigratableProcess process : batch) {
+                                                double millis = (end - suspendStart.get(process)) / 1e6;
+                                                downtime.put(process, millis);
+                                                pm.getMetrics().recordMigration(millis);
+                                        }
+                                        return 0;
+                                }
+                        }, drainExecutor);
+        }
+
+        private int restartAll(List<MigratableProcess> batch) {
+                for (MigratableProcess process : batch) {
+                        pm.restartLocally(process);
+                }
+                return batch.size();
+        }
+
+        private void report(List<MigratableProcess> processes, Map<String, List<MigratableProcess>> shares,
+                        int failed, double drainTime) {
+                StringBuilder summary = new StringBuilder();
+                Iterator<Map.Entry<String, List<MigratableProcess>>> itr = shares.entrySet().iterator();
+                while (itr.hasNext()) {
+                        Map.Entry<String, List<MigratableProcess>> share = itr.next();
+                        if (!share.getValue().isEmpty()) {
+                                summary.append(summary.length() == 0 ? "" : ", ");
+                                summary.append(share.getValue().size() + " to " + share.getKey());
+                        }
+                }
+                System.out.println("Drained " + (processes.size() - failed) + " of " + processes.size()
+                        + " processes in " + String.format("%.3f", drainTime) + " ms (" + summary + ")");
+
+                double total = 0;
+                double max = 0;
+                for (MigratableProcess process : processes) {
+                        Double d = downtime.get(process);
+                        if (d != null) {
+                                System.out.println("  process " + process.getProcID() + ": downtime "
+                                        + String.format("%.3f", d) + " ms");
+                                total += d;
+                                max = Math.max(max, d);
+                        }
+                }
+                if (!downtime.isEmpty()) {
+                        System.out.println(String.format("Downtime average %.3f ms, max %.3f ms",
+                                total / downtime.size(), max));
+                }
+        }
+}
@@ -6,13 +6,13 @@ package com.company;
 
 public class KillRequest extends Request {
 
-	private int processID;
+	private long processID;
 	
-	public KillRequest(int processID) {
+	public KillRequest(long processID) {
 		this.processID = processID;
 	}
 
-	public int getProcessID() {
+	public long getProcessID() {
 		return processID;
 	}
 }
@@ -0,0 +1,121 @@
+/**
+ * LineMatcher: Precompiled test whether a line contains a pattern.
+ * Literals are searched with Boyer-Moore-Horspool, regular expressions with
+ * java.util.regex. A LineMatcher keeps per-search state, so every thread
+ * needs its own, see copy().
+ */
+package com.company;
+
+import java.nio.CharBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public abstract class LineMatcher {
+
+        // True if the pattern occurs anywhere in line
+        public abstract boolean matches(CharSequence line);
+
+        // A matcher for the same pattern for use by another thread
+        public abstract LineMatcher copy();
+
+        public static LineMatcher literal(String query) {
+                return new Horspool(query);
+        }
+
+        public static LineMatcher regex(String regex) {
+                return new Regex(Pattern.compile(regex));
+        }
+
+        /**
+         * Horspool: Compares the pattern right to left and, on a mismatch, shifts
+         * by the distance from the last occurrence of the character under the
+         * pattern's end to the end of the pattern. The shift table is indexed by
+         * the low byte of a character, characters sharing a slot get the smallest
+         * of their shifts.
+         */
+        private static class Horspool extends LineMatcher {
+                private final char[] pattern;
+                private final int[] shift = new int[256];
+
+                Horspool(String query) {
+                        pattern = query.toCharArray();
+                        int m = pattern.length;
+                        for (int i = 0; i < shift.length; i++) {
+                                shift[i] = m;
+                        }
+                        for (int i = 0; i < m - 1; i++) {
+                                shift[pattern[i] & 0xff] = m - 1 - i;
+                        }
+                }
+
+                public boolean matches(CharSequence line) {
+                        if (pattern.length == 0) {
+                                return true;
+                        }
+                        if (line instanceof CharBuffer && ((CharBuffer) line).hasArray()) {
+                                CharBuffer chars = (CharBuffer) line;
+                                int start = chars.arrayOffset() + chars.position();
+                                return search(chars.array(), start, start + chars.remaining());
+                        }
+                        int m = pattern.length;
+                        int last = m - 1;
+                        for (int i = 0; i <= line.length() - m; ) {
+                                char c = line.charAt(i + last);
+                                if (c == pattern[last]) {
+                                        int j = last - 1;
+                                        while (j >= 0 && line.charAt(i + j) == pattern[j]) {
+                                                j--;
+                                        }
+                                        if (j < 0) {
+                                                return true;
+                                        }
+                                }
+                                i += shift[c & 0xff];
+                        }
+                        return false;
+                }
+
+                // The same search straight on the array behind a CharBuffer
+                private boolean search(char[] text, int from, int to) {
+                        int m = pattern.length;
+                        int last = m - 1;
+                        for (int i = from; i <= to - m; ) {
+                                char c = text[i + last];
+                                if (c == pattern[last]) {
+                                        int j = last - 1;
+                                        while (j >= 0 && text[i + j] == pattern[j]) {
+                                                j--;
+                                        }
+                                        if (j < 0) {
+                                                return true;
+                                        }
+                                }
+                                i += shift[c & 0xff];
+                        }
+                        return false;
+                }
+
+                // The tables are never written after construction, so they can be shared
+                public LineMatcher copy() {
+                        return this;
+                }
+        }
+
+        private static class Regex extends LineMatcher {
+                private final Pattern pattern;
+                private final Matcher matcher;
+
+                Regex(Pattern pattern) {
+                        this.pattern = pattern;
+                        this.matcher = pattern.matcher("");
+                }
+
+                public boolean matches(CharSequence line) {
+                        return matcher.reset(line).find();
+                }
+
+                public LineMatcher copy() {
+                        return new Regex(pattern);
+                }
+        }
+}
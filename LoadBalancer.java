@@ -0,0 +1,254 @@
+/**
+ * LoadBalancer: Evens out the number of processes across the cluster.
+ * Every interval each node publishes a LoadReport to all other hosts and
+ * then looks at the reports it holds. If its own score is at least threshold
+ * above the least loaded host and moving one process narrows the gap (the
+ * hysteresis that keeps two nodes from trading a process back and forth), it
+ * migrates one of its processes there through ProcessManager.migrateProcess().
+ * A process is not moved again within cooldown of starting on a node, be it
+ * started there, migrated there or resumed there after a failed migration.
+ *
+ * Each node only ever moves its own processes, one per round. In dry-run
+ * mode the plan is printed instead of carried out.
+ */
+package com.company;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class LoadBalancer implements Runnable {
+
+        public enum Mode { OFF, DRY_RUN, ON }
+
+        public static final long DEFAULT_INTERVAL = 5 * 1000;
+        public static final double DEFAULT_THRESHOLD = 2.0;
+        public static final long DEFAULT_COOLDOWN = 60 * 1000;
+
+        // Reports older than this many intervals are ignored
+        private static final int STALE_INTERVALS = 3;
+
+        private ProcessManager pm;
+        private ConnectionPool connectionPool;
+        private String hostName;
+        private LoadMonitor monitor = new LoadMonitor();
+        private volatile Mode mode;
+        private long interval;
+        private double threshold;
+        private long cooldown;
+        private ScheduledExecutorService scheduler;
+
+        // Latest report of every host, this one included
+        private ConcurrentHashMap<String, LoadReport> reports = new ConcurrentHashMap<String, LoadReport>();
+
+        public LoadBalancer(ProcessManager pm, ConnectionPool connectionPool, String hostName, Mode mode,
+                        long interval, double threshold, long cooldown) {
+                this.pm = pm;
+                this.connectionPool = connectionPool;
+                this.hostName = hostName;
+                this.mode = mode;
+                this.interval = interval;
+                this.threshold = threshold;
+                this.cooldown = cooldown;
+        }
+
+        /**
+         * fromProperties: Balancer configured by balancer.mode (off, dryrun or on),
+         * balancer.interval (milliseconds, 0 stops publishing load reports),
+         * balancer.threshold and balancer.cooldown (milliseconds)
+         */
+        public static LoadBalancer fromProperties(ProcessManager pm, ConnectionPool connectionPool, String hostName) {
+                Mode mode = parseMode(System.getProperty("balancer.mode", "off"));
+                if (mode == null) {
+                        System.err.println("Unknown balancer.mode, balancing is off.");
+                        mode = Mode.OFF;
+                }
+                return new LoadBalancer(pm, connectionPool, hostName, mode,
+                        Long.getLong("balancer.interval", DEFAULT_INTERVAL),
+                        Double.parseDouble(System.getProperty("balancer.threshold", String.valueOf(DEFAULT_THRESHOLD))),
+                        Long.getLong("balancer.cooldown", DEFAULT_COOLDOWN));
+        }
+
+        // @return null if name is not a mode
+        public static Mode parseMode(String name) {
+                if (name.equalsIgnoreCase("off")) {
+                        return Mode.OFF;
+                } else if (name.equalsIgnoreCase("dryrun")) {
+                        return Mode.DRY_RUN;
+                } else if (name.equalsIgnoreCase("on")) {
+                        return Mode.ON;
+                }
+                return null;
+        }
+
+        public void start() {
+                if (interval <= 0) {
+                        return;
+                }
+                scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "LoadBalancer");
+                                t.setDaemon(true);
+                                return t;
+                        }
+                });
+                scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        public void stop() {
+                if (scheduler != null) {
+                        scheduler.shutdown();
+                }
+        }
+
+        public void setMode(Mode mode) {
+                this.mode = mode;
+        }
+
+        public Mode getMode() {
+                return mode;
+        }
+
+        // One round: publish our load, then move a process if we are overloaded
+        public void run() {
+                try {
+                        publish();
+                        if (mode != Mode.OFF) {
+                                balance();
+                        }
+                } catch (RuntimeException e) {
+                        System.err.println("Load balancer round failed: " + e);
+                }
+        }
+
+        private void publish() {
+                LoadReport own = monitor.sample(hostName, pm.getProcessTable().size());
+                reports.put(hostName, own);
+                Iterator<String> itr = pm.getHosts().iterator();
+                while (itr.hasNext()) {
+                        String host = itr.next();
+                        if (!host.equals(hostName)) {
+                                // A host that is down simply ages out of everyone's reports
+                                connectionPool.callAsync(host, own, interval);
+                        }
+                }
+        }
+
+        // Store a report published by another host
+        public void receive(LoadReport report) {
+                reports.put(report.getHost(), report);
+        }
+
+        private void balance() {
+                Plan plan = plan();
+                if (plan == null) {
+                        return;
+                }
+                if (mode == Mode.DRY_RUN) {
+                        System.out.println("Balancer plan: " + plan);
+                        return;
+                }
+
+                System.out.println("Balancer: " + plan);
+                if (pm.migrateProcess(plan.process.getProcID(), plan.target.getHost()) == 0) {
+                        // Count the move until the next reports come in
+                        reports.put(plan.source.getHost(), plan.source.withProcesses(-1));
+                        reports.put(plan.target.getHost(), plan.target.withProcesses(1));
+                }
+        }
+
+        // A migration the balancer would do
+        private static class Plan {
+                MigratableProcess process;
+                LoadReport source;
+                LoadReport target;
+
+                Plan(MigratableProcess process, LoadReport source, LoadReport target) {
+                        this.process = process;
+                        this.source = source;
+                        this.target = target;
+                }
+
+                public String toString() {
+                        return "migrate " + process.getProcID() + " " + source.getHost() + " " + target.getHost()
+                                + String.format(" (score %.2f -> %.2f)", source.score(), target.score());
+                }
+        }
+
+        /**
+         * plan: The migration that evens out the load the most, if any is worth doing
+         * @return null if this node is not overloaded or has no process to move
+         */
+        private Plan plan() {
+                LoadReport own = reports.get(hostName);
+                if (own == null) {
+                        return null;
+                }
+
+                LoadReport target = null;
+                Iterator<LoadReport> itr = reports.values().iterator();
+                while (itr.hasNext()) {
+                        LoadReport report = itr.next();
+                        if (!report.getHost().equals(hostName) && isFresh(report)
+                                        && pm.getHosts().contains(report.getHost())
+                                        && (target == null || report.score() < target.score())) {
+                                target = report;
+                        }
+                }
+                if (target == null) {
+                        return null;
+                }
+
+                double gap = own.score() - target.score();
+                double gapAfter = own.withProcesses(-1).score() - target.withProcesses(1).score();
+                if (gap < threshold || Math.abs(gapAfter) >= gap) {
+                        return null;
+                }
+
+                MigratableProcess process = pickProcess();
+                return process == null ? null : new Plan(process, own, target);
+        }
+
+        // First running process that has not just started here
+        private MigratableProcess pickProcess() {
+                long now = System.currentTimeMillis();
+                for (MigratableProcess process : pm.getProcessTable().byState(ProcessTable.State.RUNNING)) {
+                        if (now - process.getStartTime() >= cooldown) {
+                                return process;
+                        }
+                }
+                return null;
+        }
+
+        // @return the latest report of host, or null if there is none or it is stale
+        public LoadReport getReport(String host) {
+                LoadReport report = reports.get(host);
+                return report != null && isFresh(report) ? report : null;
+        }
+
+        private boolean isFresh(LoadReport report) {
+                return System.currentTimeMillis() - report.getReceivedAt() <= STALE_INTERVALS * Math.max(interval, 1);
+        }
+
+        // Print the latest report of every host and what the balancer would do now
+        public void printLoad() {
+                List<String> hosts = pm.getHosts();
+                Iterator<String> itr = hosts.iterator();
+                while (itr.hasNext()) {
+                        String host = itr.next();
+                        LoadReport report = reports.get(host);
+                        if (report == null) {
+                                System.out.println(host + ": no report yet");
+                        } else {
+                                System.out.println(report + (isFresh(report) ? "" : " (stale)"));
+                        }
+                }
+                Plan plan = plan();
+                System.out.println("Balancer is " + mode.toString().toLowerCase().replace("_", "")
+                        + (plan == null ? ", nothing to move." : ", plan: " + plan));
+        }
+}
@@ -0,0 +1,58 @@
+/**
+ * LoadMonitor: Samples the load of this node for a LoadReport.
+ * CPU is the system load average per core, runnable threads come from the
+ * ThreadMXBean and the I/O rate is the file traffic of the transactional
+ * streams, which count their bytes through recordIo().
+ */
+package com.company;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadMonitor {
+
+        // Bytes read and written by transactional streams since start
+        private static final LongAdder ioBytes = new LongAdder();
+
+        private long lastIoBytes;
+        private long lastSampleTime = System.nanoTime();
+
+        public static void recordIo(long bytes) {
+                if (bytes > 0) {
+                        ioBytes.add(bytes);
+                }
+        }
+
+        /**
+         * sample: Load of this node right now. The I/O rate is averaged over
+         * the time since the previous sample.
+         */
+        public synchronized LoadReport sample(String host, int processCount) {
+                OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+                double loadAverage = os.getSystemLoadAverage();
+                double cpuLoad = loadAverage < 0 ? 0 : loadAverage / os.getAvailableProcessors();
+
+                long now = System.nanoTime();
+                long io = ioBytes.sum();
+                double seconds = (now - lastSampleTime) / 1e9;
+                long ioRate = seconds > 0 ? (long) ((io - lastIoBytes) / seconds) : 0;
+                lastIoBytes = io;
+                lastSampleTime = now;
+
+                return new LoadReport(host, processCount, cpuLoad, runnableThreads(), ioRate);
+        }
+
+        private static int runnableThreads() {
+                ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                int runnable = 0;
+                for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), 0)) {
+                        if (info != null && info.getThreadState() == Thread.State.RUNNABLE) {
+                                runnable++;
+                        }
+                }
+                return runnable;
+        }
+}
@@ -0,0 +1,78 @@
+/**
+ * LoadReport: Load numbers a node publishes to the rest of the cluster for
+ * the LoadBalancer. score() folds them into the single number the balancer
+ * evens out: the process count, weighted up when the node's CPU or disks are
+ * busy, plus a share for every runnable thread.
+ */
+package com.company;
+
+public class LoadReport extends Request {
+
+        // A runnable thread counts as this many processes, so busy processes weigh more than sleeping ones
+        private static final double RUNNABLE_WEIGHT = 0.5;
+
+        // Bytes per second of file I/O at which the node's disks count as saturated
+        private static final double IO_SATURATION = 100 * 1024 * 1024;
+
+        private String host;
+        private int processCount;
+        private double cpuLoad;
+        private int runnableThreads;
+        private long ioRate;
+
+        // When this node received the report, to tell stale reports apart
+        private transient long receivedAt;
+
+        public LoadReport(String host, int processCount, double cpuLoad, int runnableThreads, long ioRate) {
+                this.host = host;
+                this.processCount = processCount;
+                this.cpuLoad = cpuLoad;
+                this.runnableThreads = runnableThreads;
+                this.ioRate = ioRate;
+                this.receivedAt = System.currentTimeMillis();
+        }
+
+        public String getHost() {
+                return host;
+        }
+
+        public int getProcessCount() {
+                return processCount;
+        }
+
+        // System load average per core, 0 where it is not available
+        public double getCpuLoad() {
+                return cpuLoad;
+        }
+
+        public int getRunnableThreads() {
+                return runnableThreads;
+        }
+
+        // Bytes per second read and written by the node's processes
+        public long getIoRate() {
+                return ioRate;
+        }
+
+        public long getReceivedAt() {
+                return receivedAt;
+        }
+
+        public double score() {
+                double pressure = 1 + Math.min(cpuLoad, 1.0) + Math.min(ioRate / IO_SATURATION, 1.0);
+                return processCount * pressure + RUNNABLE_WEIGHT * runnableThreads;
+        }
+
+        // The report as it will look once one more (or, with -1, one less) process runs there
+        public LoadReport withProcesses(int delta) {
+                LoadReport report = new LoadReport(host, processCount + delta, cpuLoad, runnableThreads, ioRate);
+                report.receivedAt = receivedAt;
+                return report;
+        }
+
+        @Override
+        public String toString() {
+                return String.format("%s: %d processes, cpu %.2f, %d runnable threads, %d B/s I/O, score %.2f",
+                        host, processCount, cpuLoad, runnableThreads, ioRate, score());
+        }
+}
@@ -0,0 +1,299 @@
+/**
+ * MergeSortProcess: Sorts the lines of a file that may be larger than memory
+ * with an external merge sort.
+ * 1) Run generation: read lines up to the memory budget, sort them with a
+ *    parallel sort and spill them to a run file next to the output file
+ * 2) Merge: repeatedly write the smallest head line of all runs, picked from
+ *    a heap, to the output file
+ *
+ * The phase, the finished runs and the position of every run in the merge are
+ * part of the process state, so it can be migrated in either phase and goes on
+ * without redoing finished runs. A suspend while a run is being read spills
+ * the lines read so far as a shorter run. Lines are compared as Strings.
+ * When paced, every line read into a run and every line merged is a record.
+ */
+
+package com.company;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+public class MergeSortProcess extends MigratableProcess {
+
+        private enum Phase { RUNS, MERGE, DONE }
+
+        // Default memory budget for one run, in megabytes
+        private static final long DEFAULT_MEMORY = 64;
+
+        // Rough heap cost of a line besides its characters
+        private static final int LINE_OVERHEAD = 64;
+
+        // Read buffer of each run in the merge, kept small since all runs are open at once
+        private static final int RUN_BUFFER_SIZE = 16 * 1024;
+
+        // Head line of a run in the merge
+        private static class Head implements Comparable<Head> {
+                String line;
+                final int run;
+
+                Head(String line, int run) {
+                        this.line = line;
+                        this.run = run;
+                }
+
+                public int compareTo(Head other) {
+                        int c = line.compareTo(other.line);
+                        return c != 0 ? c : Integer.compare(run, other.run);
+                }
+        }
+
+        private TransactionalFileInputStream inFile;
+        private TransactionalFileOutputStream outFile;
+        private long memory;
+        private Phase phase = Phase.RUNS;
+
+        // Input offset up to which all lines are in finished runs
+        private long inputCommitted;
+
+        // Finished runs. In the merge each one is positioned after its line in the heap.
+        private List<TransactionalFileInputStream> runs = new ArrayList<TransactionalFileInputStream>();
+
+        // Offset of the line each run has in the heap, where the run goes on after a migration
+        private long[] heads;
+
+        private transient PriorityQueue<Head> heap;
+
+        public MergeSortProcess(String[] args) throws Exception
+        {
+                super(args);
+                if (args.length != 3 && args.length != 4) {
+                        System.out.println("Synopsis: MergeSortProcess <inputFile> <outputFile> [memoryMB]");
+                        throw new Exception("Invalid Parameters");
+                }
+
+                memory = (args.length == 4 ? Long.parseLong(args[2]) : DEFAULT_MEMORY) * 1024 * 1024;
+                if (memory <= 0) {
+                        System.out.println("MergeSortProcess: the memory budget must be positive");
+                        throw new Exception("Invalid Parameters");
+                }
+                inFile = new TransactionalFileInputStream(args[0]);
+                outFile = new TransactionalFileOutputStream(args[1]);
+        }
+
+        @Override
+        public void run()
+        {
+                try {
+                        while (!suspend_flag && !should_quit && phase != Phase.DONE) {
+                                if (phase == Phase.RUNS) {
+                                        generateRun();
+                                } else {
+                                        merge();
+                                        pace(1);
+                                }
+                        }
+
+                        inFile.closeFile();
+                        outFile.closeFile();
+                        for (TransactionalFileInputStream run : runs) {
+                                run.closeFile();
+                        }
+                        if (phase == Phase.DONE) {
+                                // The output file does not exist yet if the input had no lines
+                                deleteRuns();
+                                new File(outFile.getFilePath()).createNewFile();
+                        } else if (should_quit) {
+                                deleteRuns();
+                        }
+                        reachedSafePoint();
+                } catch (IOException e) {
+                        System.out.println("MergeSortProcess Error: " + e);
+                } finally {
+                        signalListeners();
+                }
+        }
+
+        /**
+         * generateRun: Read lines until the memory budget is used up, the input
+         * ends or the process is asked to suspend, then sort and spill them as
+         * the next run
+         */
+        private void generateRun() throws IOException
+        {
+                List<String> lines = new ArrayList<String>();
+                long used = 0;
+                boolean eof = false;
+                while (used < memory && !suspend_flag && !should_quit) {
+                        String line = inFile.readLine();
+                        if (line == null) {
+                                eof = true;
+                                break;
+                        }
+                        lines.add(line);
+                        used += 2L * line.length() + LINE_OVERHEAD;
+                        pace(1);
+                }
+
+                if (should_quit) {
+                        return;
+                }
+
+                String path = null;
+                if (!lines.isEmpty()) {
+                        String[] sorted = lines.toArray(new String[lines.size()]);
+                        lines = null;
+                        Arrays.parallelSort(sorted);
+
+                        // Next to the output file as it is now, FileShipper relocates it on a migration.
+                        // A run left over from before a crash is written again from the start.
+                        path = outFile.getFilePath() + ".run" + runs.size();
+                        new File(path).delete();
+                        TransactionalFileOutputStream out = new TransactionalFileOutputStream(path);
+                        for (int i = 0; i < sorted.length; i++) {
+                                out.writeString(sorted[i]);
+                        }
+                        out.closeFile();
+                }
+
+                synchronized (this) {
+                        if (path != null) {
+                                runs.add(new TransactionalFileInputStream(path, RUN_BUFFER_SIZE));
+                        }
+                        inputCommitted = inFile.getFileOffset();
+                        if (eof) {
+                                phase = Phase.MERGE;
+                        }
+                        markDirty();
+                }
+        }
+
+        // Write the smallest head line to the output and replace it with the next line of its run
+        private void merge() throws IOException
+        {
+                synchronized (this) {
+                        if (heap == null) {
+                                heap = new PriorityQueue<Head>(Math.max(runs.size(), 1));
+                                if (heads == null) {
+                                        heads = new long[runs.size()];
+                                }
+                                for (int i = 0; i < runs.size(); i++) {
+                                        advance(new Head(null, i));
+                                }
+                        }
+
+                        Head head = heap.poll();
+                        if (head == null) {
+                                phase = Phase.DONE;
+                        } else {
+                                outFile.writeString(head.line);
+                                advance(head);
+                        }
+                        markDirty();
+                }
+        }
+
+        // Read the next line of head's run into head and put it back on the heap
+        private void advance(Head head) throws IOException
+        {
+                TransactionalFileInputStream run = runs.get(head.run);
+                heads[head.run] = run.getFileOffset();
+                head.line = run.readLine();
+                if (head.line != null) {
+                        heap.add(head);
+                }
+        }
+
+        private void deleteRuns()
+        {
+                for (TransactionalFileInputStream run : runs) {
+                        new File(run.getFilePath()).delete();
+                }
+        }
+
+        // Nothing of the input before start is part of this sort
+        @Override
+        protected void setInputRange(long start, long end)
+        {
+                super.setInputRange(start, end);
+                inputCommitted = start;
+        }
+
+        public void migrationPreProcess()
+        {
+                inFile.setFlag(true);
+                outFile.setFlag(true);
+                for (TransactionalFileInputStream run : runs) {
+                        run.setFlag(true);
+                }
+        }
+
+        @Override
+        protected TransactionalFileInputStream[] getInputFiles()
+        {
+                TransactionalFileInputStream[] files = new TransactionalFileInputStream[runs.size() + 1];
+                files[0] = inFile;
+                for (int i = 0; i < runs.size(); i++) {
+                        files[i + 1] = runs.get(i);
+                }
+                return files;
+        }
+
+        @Override
+        protected TransactionalFileOutputStream[] getOutputFiles()
+        {
+                return new TransactionalFileOutputStream[] { outFile };
+        }
+
+        @Override
+        protected void checkpointPreProcess() throws IOException
+        {
+                outFile.flush();
+        }
+
+        @Override
+        protected void writeState(DataOutput out) throws IOException
+        {
+                out.writeByte(phase.ordinal());
+                inFile.writeState(out);
+                WireFormat.writeVarLong(out, inputCommitted);
+                outFile.writeState(out);
+                WireFormat.writeVarInt(out, runs.size());
+                for (int i = 0; i < runs.size(); i++) {
+                        runs.get(i).writeState(out);
+                        WireFormat.writeVarLong(out, heads != null ? heads[i] : 0);
+                }
+        }
+
+        @Override
+        protected void readState(DataInput in) throws IOException
+        {
+                phase = Phase.values()[in.readByte()];
+
+                // Lines read past inputCommitted were not in a run yet and are read again
+                inFile.readState(in);
+                inputCommitted = WireFormat.readVarLong(in);
+                inFile.seek(inputCommitted);
+                outFile.readState(in);
+
+                // Each run goes back to its head line, which is read into the heap again
+                int count = WireFormat.readLength(in);
+                runs = new ArrayList<TransactionalFileInputStream>(count);
+                heads = phase == Phase.RUNS ? null : new long[count];
+                for (int i = 0; i < count; i++) {
+                        TransactionalFileInputStream run = new TransactionalFileInputStream(null, RUN_BUFFER_SIZE);
+                        run.readState(in);
+                        long head = WireFormat.readVarLong(in);
+                        run.seek(head);
+                        if (heads != null) {
+                                heads[i] = head;
+                        }
+                        runs.add(run);
+                }
+        }
+}
@@ -0,0 +1,511 @@
+/**
+ * MessageCodec: Compact, versioned binary encoding for everything sent between nodes.
+ * Every message starts with the codec version and a varint type ID from the
+ * registry below, followed by the fields of that type. Anything without a
+ * registered type, including processes that don't implement the state hooks
+ * of MigratableProcess, falls back to Java serialization under TYPE_JAVA.
+ */
+package com.company;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class MessageCodec {
+
+        // Bump when the encoding of an existing type changes
+        public static final int VERSION = 6;
+
+        // Type IDs. Never reuse or renumber an ID, add new types at the end.
+        public static final int TYPE_JAVA = 0;
+        public static final int TYPE_RESPONSE = 1;
+        public static final int TYPE_PROCESS_LIST_REQUEST = 2;
+        public static final int TYPE_PROCESS_LIST_RESPONSE = 3;
+        public static final int TYPE_KILL_REQUEST = 4;
+        public static final int TYPE_MIGRATE_REQUEST = 5;
+        public static final int TYPE_ADD_HOST_REQUEST = 6;
+        public static final int TYPE_REMOVE_HOST_REQUEST = 7;
+        public static final int TYPE_PROCESS = 8;
+        public static final int TYPE_PRECOPY_REQUEST = 9;
+        public static final int TYPE_FILE_SYNC_REQUEST = 10;
+        public static final int TYPE_FILE_SIGNATURES = 11;
+        public static final int TYPE_LOAD_REPORT = 12;
+        public static final int TYPE_DRAIN_REQUEST = 13;
+        public static final int TYPE_PROCESS_BATCH = 14;
+        public static final int TYPE_STATS_REQUEST = 15;
+        public static final int TYPE_STATS_RESPONSE = 16;
+        public static final int TYPE_SHARD_DONE_REQUEST = 17;
+        public static final int TYPE_RATE_REQUEST = 18;
+        public static final int TYPE_SHARD_STATUS_REQUEST = 19;
+        public static final int TYPE_SHARD_STATUS_RESPONSE = 20;
+
+        private static final Map<Class<?>, Integer> TYPES = new HashMap<Class<?>, Integer>();
+        static {
+                TYPES.put(Response.class, TYPE_RESPONSE);
+                TYPES.put(ProcessListRequest.class, TYPE_PROCESS_LIST_REQUEST);
+                TYPES.put(ProcessListResponse.class, TYPE_PROCESS_LIST_RESPONSE);
+                TYPES.put(KillRequest.class, TYPE_KILL_REQUEST);
+                TYPES.put(MigrateRequest.class, TYPE_MIGRATE_REQUEST);
+                TYPES.put(AddHostRequest.class, TYPE_ADD_HOST_REQUEST);
+                TYPES.put(RemoveHostRequest.class, TYPE_REMOVE_HOST_REQUEST);
+                TYPES.put(PrecopyRequest.class, TYPE_PRECOPY_REQUEST);
+                TYPES.put(FileSyncRequest.class, TYPE_FILE_SYNC_REQUEST);
+                TYPES.put(FileSignatures.class, TYPE_FILE_SIGNATURES);
+                TYPES.put(LoadReport.class, TYPE_LOAD_REPORT);
+                TYPES.put(DrainRequest.class, TYPE_DRAIN_REQUEST);
+                TYPES.put(ProcessBatch.class, TYPE_PROCESS_BATCH);
+                TYPES.put(StatsRequest.class, TYPE_STATS_REQUEST);
+                TYPES.put(StatsResponse.class, TYPE_STATS_RESPONSE);
+                TYPES.put(ShardDoneRequest.class, TYPE_SHARD_DONE_REQUEST);
+                TYPES.put(RateRequest.class, TYPE_RATE_REQUEST);
+                TYPES.put(ShardStatusRequest.class, TYPE_SHARD_STATUS_REQUEST);
+                TYPES.put(ShardStatusResponse.class, TYPE_SHARD_STATUS_RESPONSE);
+        }
+
+        // Process classes that override MigratableProcess.writeState()
+        private static final ConcurrentHashMap<Class<?>, Boolean> compactProcesses =
+                new ConcurrentHashMap<Class<?>, Boolean>();
+
+        private MessageCodec() {
+        }
+
+        /**
+         * encodeMessage: Write a top level message, version included
+         */
+        public static void encodeMessage(DataOutput out, Object message) throws IOException {
+                WireFormat.writeVarInt(out, VERSION);
+                encode(out, message);
+        }
+
+        public static Object decodeMessage(DataInput in) throws IOException {
+                int version = WireFormat.readVarInt(in);
+                if (version != VERSION) {
+                        throw new IOException("Unsupported message codec version " + version);
+                }
+                return decode(in);
+        }
+
+        // Write one value with its type ID
+        public static void encode(DataOutput out, Object message) throws IOException {
+                Integer type = message == null ? null : TYPES.get(message.getClass());
+                if (type == null) {
+                        if (message instanceof MigratableProcess && hasCompactState(message.getClass())) {
+                                type = TYPE_PROCESS;
+                        } else {
+                                type = TYPE_JAVA;
+                        }
+                }
+                WireFormat.writeVarInt(out, type);
+
+                switch (type) {
+                case TYPE_RESPONSE:
+                        WireFormat.writeSignedVarInt(out, ((Response) message).getErrorCode());
+                        break;
+                case TYPE_PROCESS_LIST_REQUEST:
+                        break;
+                case TYPE_PROCESS_LIST_RESPONSE:
+                        ProcessListResponse list = (ProcessListResponse) message;
+                        WireFormat.writeSignedVarInt(out, list.getErrorCode());
+                        WireFormat.writeVarInt(out, list.getList().size());
+                        for (MigratableProcess process : list.getList()) {
+                                encode(out, process);
+                        }
+                        break;
+                case TYPE_KILL_REQUEST:
+                        WireFormat.writeSignedVarLong(out, ((KillRequest) message).getProcessID());
+                        break;
+                case TYPE_MIGRATE_REQUEST:
+                        MigrateRequest migrate = (MigrateRequest) message;
+                        WireFormat.writeSignedVarLong(out, migrate.getProcessID());
+                        WireFormat.writeString(out, migrate.getHostTo());
+                        out.writeBoolean(migrate.isLive());
+                        break;
+                case TYPE_ADD_HOST_REQUEST:
+                        List<String> hosts = ((AddHostRequest) message).getHostList();
+                        WireFormat.writeVarInt(out, hosts.size());
+                        for (String host : hosts) {
+                                WireFormat.writeString(out, host);
+                        }
+                        break;
+                case TYPE_REMOVE_HOST_REQUEST:
+                        WireFormat.writeString(out, ((RemoveHostRequest) message).getHost());
+                        break;
+                case TYPE_PROCESS:
+                        writeProcess(out, (MigratableProcess) message);
+                        break;
+                case TYPE_PRECOPY_REQUEST:
+                        PrecopyRequest precopy = (PrecopyRequest) message;
+                        WireFormat.writeVarLong(out, precopy.getSessionId());
+                        WireFormat.writeVarInt(out, precopy.getPhase());
+                        writeDelta(out, precopy.getDelta());
+                        break;
+                case TYPE_FILE_SYNC_REQUEST:
+                        FileSyncRequest sync = (FileSyncRequest) message;
+                        WireFormat.writeVarInt(out, sync.getPhase());
+                        WireFormat.writeString(out, sync.getSourceHost());
+                        WireFormat.writeString(out, sync.getPath());
+                        writeFileDelta(out, sync.getDelta());
+                        break;
+                case TYPE_FILE_SIGNATURES:
+                        FileSignatures signatures = (FileSignatures) message;
+                        WireFormat.writeSignedVarInt(out, signatures.getErrorCode());
+                        WireFormat.writeString(out, signatures.getCachePath());
+                        WireFormat.writeVarInt(out, signatures.getBlockSize());
+                        WireFormat.writeVarInt(out, signatures.getWeak().length);
+                        for (int i = 0; i < signatures.getWeak().length; i++) {
+                                out.writeInt(signatures.getWeak()[i]);
+                                out.writeLong(signatures.getStrong()[i]);
+                        }
+                        break;
+                case TYPE_LOAD_REPORT:
+                        LoadReport load = (LoadReport) message;
+                        WireFormat.writeString(out, load.getHost());
+                        WireFormat.writeVarInt(out, load.getProcessCount());
+                        out.writeDouble(load.getCpuLoad());
+                        WireFormat.writeVarInt(out, load.getRunnableThreads());
+                        WireFormat.writeVarLong(out, load.getIoRate());
+                        break;
+                case TYPE_DRAIN_REQUEST:
+                        break;
+                case TYPE_PROCESS_BATCH:
+                        List<MigratableProcess> batch = ((ProcessBatch) message).getProcesses();
+                        WireFormat.writeVarInt(out, batch.size());
+                        for (MigratableProcess process : batch) {
+                                encode(out, process);
+                        }
+                        break;
+                case TYPE_STATS_REQUEST:
+                        break;
+                case TYPE_SHARD_DONE_REQUEST:
+                        ShardDoneRequest shardDone = (ShardDoneRequest) message;
+                        WireFormat.writeSignedVarLong(out, shardDone.getJobId());
+                        WireFormat.writeVarInt(out, shardDone.getShard());
+                        WireFormat.writeSignedVarLong(out, shardDone.getProcessID());
+                        WireFormat.writeString(out, shardDone.getHost());
+                        break;
+                case TYPE_RATE_REQUEST:
+                        RateRequest rate = (RateRequest) message;
+                        WireFormat.writeSignedVarLong(out, rate.getProcessID());
+                        out.writeDouble(rate.getRate());
+                        break;
+                case TYPE_SHARD_STATUS_REQUEST:
+                        ShardStatusRequest shardStatus = (ShardStatusRequest) message;
+                        WireFormat.writeString(out, shardStatus.getJobHost());
+                        WireFormat.writeSignedVarLong(out, shardStatus.getJobId());
+                        break;
+                case TYPE_SHARD_STATUS_RESPONSE:
+                        ShardStatusResponse status = (ShardStatusResponse) message;
+                        WireFormat.writeSignedVarInt(out, status.getErrorCode());
+                        WireFormat.writeVarInt(out, status.getShards().length);
+                        for (int i = 0; i < status.getShards().length; i++) {
+                                WireFormat.writeVarInt(out, status.getShards()[i]);
+                                WireFormat.writeSignedVarLong(out, status.getProcessIDs()[i]);
+                                WireFormat.writeVarLong(out, status.getOffsets()[i]);
+                        }
+                        break;
+                case TYPE_STATS_RESPONSE:
+                        StatsResponse stats = (StatsResponse) message;
+                        WireFormat.writeSignedVarInt(out, stats.getErrorCode());
+                        WireFormat.writeString(out, stats.getHost());
+                        WireFormat.writeVarInt(out, stats.getMetrics().size());
+                        for (Map.Entry<String, Double> metric : stats.getMetrics().entrySet()) {
+                                WireFormat.writeString(out, metric.getKey());
+                                out.writeDouble(metric.getValue());
+                        }
+                        break;
+                default:
+                        writeJava(out, message);
+                        break;
+                }
+        }
+
+        // Read one value written by encode()
+        public static Object decode(DataInput in) throws IOException {
+                int type = WireFormat.readVarInt(in);
+                switch (type) {
+                case TYPE_RESPONSE:
+                        return new Response(WireFormat.readSignedVarInt(in));
+                case TYPE_PROCESS_LIST_REQUEST:
+                        return new ProcessListRequest();
+                case TYPE_PROCESS_LIST_RESPONSE:
+                        int errorCode = WireFormat.readSignedVarInt(in);
+                        Object[] processes = new Object[WireFormat.readLength(in)];
+                        for (int i = 0; i < processes.length; i++) {
+                                processes[i] = decode(in);
+                        }
+                        return new ProcessListResponse(errorCode, processes);
+                case TYPE_KILL_REQUEST:
+                        return new KillRequest(WireFormat.readSignedVarLong(in));
+                case TYPE_MIGRATE_REQUEST:
+                        long processID = WireFormat.readSignedVarLong(in);
+                        String hostTo = WireFormat.readString(in);
+                        return new MigrateRequest(processID, hostTo, in.readBoolean());
+                case TYPE_ADD_HOST_REQUEST:
+                        int count = WireFormat.readLength(in);
+                        List<String> hosts = new ArrayList<String>(count);
+                        for (int i = 0; i < count; i++) {
+                                hosts.add(WireFormat.readString(in));
+                        }
+                        return new AddHostRequest(hosts);
+                case TYPE_REMOVE_HOST_REQUEST:
+                        return new RemoveHostRequest(WireFormat.readString(in));
+                case TYPE_PROCESS:
+                        return readProcess(in);
+                case TYPE_PRECOPY_REQUEST:
+                        long sessionId = WireFormat.readVarLong(in);
+                        int phase = WireFormat.readVarInt(in);
+                        return new PrecopyRequest(sessionId, phase, readDelta(in));
+                case TYPE_FILE_SYNC_REQUEST:
+                        int syncPhase = WireFormat.readVarInt(in);
+                        String sourceHost = WireFormat.readString(in);
+                        String path = WireFormat.readString(in);
+                        return new FileSyncRequest(syncPhase, sourceHost, path, readFileDelta(in));
+                case TYPE_FILE_SIGNATURES:
+                        int signaturesError = WireFormat.readSignedVarInt(in);
+                        String cachePath = WireFormat.readString(in);
+                        int blockSize = WireFormat.readVarInt(in);
+                        int[] weak = new int[WireFormat.readLength(in)];
+                        long[] strong = new long[weak.length];
+                        for (int i = 0; i < weak.length; i++) {
+                                weak[i] = in.readInt();
+                                strong[i] = in.readLong();
+                        }
+                        return new FileSignatures(signaturesError, cachePath, blockSize, weak, strong);
+                case TYPE_LOAD_REPORT:
+                        String host = WireFormat.readString(in);
+                        int processCount = WireFormat.readVarInt(in);
+                        double cpuLoad = in.readDouble();
+                        int runnableThreads = WireFormat.readVarInt(in);
+                        return new LoadReport(host, processCount, cpuLoad, runnableThreads, WireFormat.readVarLong(in));
+                case TYPE_DRAIN_REQUEST:
+                        return new DrainRequest();
+                case TYPE_PROCESS_BATCH:
+                        int batchSize = WireFormat.readLength(in);
+                        List<MigratableProcess> batch = new ArrayList<MigratableProcess>(batchSize);
+                        for (int i = 0; i < batchSize; i++) {
+                                batch.add((MigratableProcess) decode(in));
+                        }
+                        return new ProcessBatch(batch);
+                case TYPE_STATS_REQUEST:
+                        return new StatsRequest();
+                case TYPE_SHARD_DONE_REQUEST:
+                        long jobId = WireFormat.readSignedVarLong(in);
+                        int shard = WireFormat.readVarInt(in);
+                        long shardProcessID = WireFormat.readSignedVarLong(in);
+                        return new ShardDoneRequest(jobId, shard, shardProcessID, WireFormat.readString(in));
+                case TYPE_RATE_REQUEST:
+                        long rateProcessID = WireFormat.readSignedVarLong(in);
+                        return new RateRequest(rateProcessID, in.readDouble());
+                case TYPE_SHARD_STATUS_REQUEST:
+                        String statusJobHost = WireFormat.readString(in);
+                        return new ShardStatusRequest(statusJobHost, WireFormat.readSignedVarLong(in));
+                case TYPE_SHARD_STATUS_RESPONSE:
+                        int statusError = WireFormat.readSignedVarInt(in);
+                        int[] statusShards = new int[WireFormat.readLength(in)];
+                        long[] statusProcessIDs = new long[statusShards.length];
+                        long[] statusOffsets = new long[statusShards.length];
+                        for (int i = 0; i < statusShards.length; i++) {
+                                statusShards[i] = WireFormat.readVarInt(in);
+                                statusProcessIDs[i] = WireFormat.readSignedVarLong(in);
+                                statusOffsets[i] = WireFormat.readVarLong(in);
+                        }
+                        return new ShardStatusResponse(statusError, statusShards, statusProcessIDs, statusOffsets);
+                case TYPE_STATS_RESPONSE:
+                        int statsError = WireFormat.readSignedVarInt(in);
+                        String statsHost = WireFormat.readString(in);
+                        int metricCount = WireFormat.readLength(in);
+                        Map<String, Double> metrics = new TreeMap<String, Double>();
+                        for (int i = 0; i < metricCount; i++) {
+                                String name = WireFormat.readString(in);
+                                metrics.put(name, in.readDouble());
+                        }
+                        return new StatsResponse(statsError, statsHost, metrics);
+                case TYPE_JAVA:
+                        return readJava(in);
+                default:
+                        throw new IOException("Unknown message type " + type);
+                }
+        }
+
+        // A missing delta is written as a block count of 0 and length 0
+        static void writeDelta(DataOutput out, StateDelta delta) throws IOException {
+                if (delta == null) {
+                        WireFormat.writeVarInt(out, 0);
+                        return;
+                }
+                WireFormat.writeVarInt(out, delta.getLength() + 1);
+                WireFormat.writeVarInt(out, delta.getBlocks().length);
+                for (int block : delta.getBlocks()) {
+                        WireFormat.writeVarInt(out, block);
+                }
+                WireFormat.writeVarInt(out, delta.getData().length);
+                out.write(delta.getData());
+        }
+
+        static StateDelta readDelta(DataInput in) throws IOException {
+                int length = WireFormat.readVarInt(in);
+                if (length == 0) {
+                        return null;
+                }
+                int[] blocks = new int[WireFormat.readLength(in)];
+                for (int i = 0; i < blocks.length; i++) {
+                        blocks[i] = WireFormat.readVarInt(in);
+                }
+                byte[] data = new byte[WireFormat.readLength(in)];
+                in.readFully(data);
+                return new StateDelta(length - 1, blocks, data);
+        }
+
+        // A missing file delta is written as a block size of 0
+        private static void writeFileDelta(DataOutput out, FileDelta delta) throws IOException {
+                if (delta == null) {
+                        WireFormat.writeVarInt(out, 0);
+                        return;
+                }
+                WireFormat.writeVarInt(out, delta.getBlockSize());
+                WireFormat.writeVarLong(out, delta.getOffset());
+                WireFormat.writeVarInt(out, delta.getOps().length);
+                for (int op : delta.getOps()) {
+                        WireFormat.writeSignedVarInt(out, op);
+                }
+                WireFormat.writeVarInt(out, delta.getData().length);
+                out.write(delta.getData());
+        }
+
+        private static FileDelta readFileDelta(DataInput in) throws IOException {
+                int blockSize = WireFormat.readVarInt(in);
+                if (blockSize == 0) {
+                        return null;
+                }
+                long offset = WireFormat.readVarLong(in);
+                int[] ops = new int[WireFormat.readLength(in)];
+                for (int i = 0; i < ops.length; i++) {
+                        ops[i] = WireFormat.readSignedVarInt(in);
+                }
+                byte[] data = new byte[WireFormat.readLength(in)];
+                in.readFully(data);
+                return new FileDelta(offset, blockSize, ops, data);
+        }
+
+        // Encode a message into a byte array, version included
+        public static byte[] toBytes(Object message) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                encodeMessage(new DataOutputStream(bytes), message);
+                return bytes.toByteArray();
+        }
+
+        public static Object fromBytes(byte[] bytes) throws IOException {
+                return decodeMessage(new DataInputStream(new ByteArrayInputStream(bytes)));
+        }
+
+        // True if cls (or a superclass below MigratableProcess) overrides writeState()
+        static boolean hasCompactState(Class<?> cls) {
+                Boolean compact = compactProcesses.get(cls);
+                if (compact == null) {
+                        compact = false;
+                        for (Class<?> c = cls; c != MigratableProcess.class && c != null; c = c.getSuperclass()) {
+                                try {
+                                        c.getDeclaredMethod("writeState", DataOutput.class);
+                                        compact = true;
+                                        break;
+                                } catch (NoSuchMethodException e) {
+                                        // keep looking in the superclass
+                                }
+                        }
+                        compactProcesses.put(cls, compact);
+                }
+                return compact;
+        }
+
+        /**
+         * writeProcess: Class name and constructor arguments, then the process' own state.
+         * On the other side the process is rebuilt through its String[] constructor
+         * and readState() restores the rest.
+         */
+        private static void writeProcess(DataOutput out, MigratableProcess process) throws IOException {
+                WireFormat.writeString(out, process.getClass().getName());
+                WireFormat.writeVarInt(out, process.procArgs.size());
+                for (String arg : process.procArgs) {
+                        WireFormat.writeString(out, arg);
+                }
+                WireFormat.writeSignedVarLong(out, process.getProcID());
+                String jobHost = process.getJobHost();
+                WireFormat.writeString(out, jobHost == null ? "" : jobHost);
+                if (jobHost != null) {
+                        WireFormat.writeSignedVarLong(out, process.getJobId());
+                        WireFormat.writeVarInt(out, process.getShard());
+                }
+                // Most processes are not paced
+                out.writeBoolean(process.getRate() > 0);
+                if (process.getRate() > 0) {
+                        out.writeDouble(process.getRate());
+                }
+                process.writeState(out);
+        }
+
+        private static MigratableProcess readProcess(DataInput in) throws IOException {
+                String className = WireFormat.readString(in);
+                String[] args = new String[WireFormat.readLength(in)];
+                for (int i = 0; i < args.length; i++) {
+                        args[i] = WireFormat.readString(in);
+                }
+                long procID = WireFormat.readSignedVarLong(in);
+
+                MigratableProcess process;
+                try {
+                        // Load without initializing, and only construct process classes
+                        Class<?> cls = Class.forName(className, false, MessageCodec.class.getClassLoader());
+                        if (!MigratableProcess.class.isAssignableFrom(cls)) {
+                                throw new IOException("Not a process class: " + className);
+                        }
+                        Constructor<?> constructor = cls.getConstructor(String[].class);
+                        process = (MigratableProcess) constructor.newInstance(new Object[]{args});
+                } catch (IOException e) {
+                        throw e;
+                } catch (Exception e) {
+                        throw new IOException("Could not rebuild process " + className + ": " + e);
+                }
+                process.setProcID(procID);
+                String jobHost = WireFormat.readString(in);
+                if (jobHost.length() > 0) {
+                        long jobId = WireFormat.readSignedVarLong(in);
+                        process.setShard(jobHost, jobId, WireFormat.readVarInt(in));
+                }
+                process.setRate(in.readBoolean() ? in.readDouble() : 0);
+                process.readState(in);
+                return process;
+        }
+
+        private static void writeJava(DataOutput out, Object message) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(bytes);
+                oos.writeObject(message);
+                oos.close();
+                WireFormat.writeVarInt(out, bytes.size());
+                out.write(bytes.toByteArray());
+        }
+
+        private static Object readJava(DataInput in) throws IOException {
+                byte[] bytes = new byte[WireFormat.readLength(in)];
+                in.readFully(bytes);
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                try {
+                        return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                        throw new IOException("Unknown class in message: " + e.getMessage());
+                }
+        }
+}
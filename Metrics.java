@@ -0,0 +1,210 @@
+/**
+ * Metrics: Runtime numbers of this node, cheap enough to leave on.
+ * Event counters (suspends, migrations, requests) are LongAdders and
+ * DoubleAccumulators, so recording never takes a lock. Per-stream and
+ * per-process figures are not counted at all on the hot path: they are
+ * derived from the stream offsets and line counts when a snapshot is taken.
+ *
+ * A snapshot is a flat, sorted map of metric name to value. Durations are in
+ * milliseconds. Names ending in "max" are combined across hosts by taking the
+ * maximum, everything else by adding up, see aggregate().
+ *
+ * Metrics listens to the ProcessRuntime for the processes it starts and
+ * finishes.
+ */
+package com.company;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics implements ProcessLifecycleListener {
+
+        // Count, total and maximum of a duration or size
+        public static class Distribution {
+                private final LongAdder count = new LongAdder();
+                private final DoubleAdder total = new DoubleAdder();
+                private final DoubleAccumulator max = new DoubleAccumulator(Math::max, 0);
+
+                public void record(double value) {
+                        count.increment();
+                        total.add(value);
+                        max.accumulate(value);
+                }
+
+                public long getCount() {
+                        return count.sum();
+                }
+
+                public double getAverage() {
+                        long n = count.sum();
+                        return n == 0 ? 0 : total.sum() / n;
+                }
+
+                public double getMax() {
+                        return max.get();
+                }
+
+                void snapshot(Map<String, Double> out, String name, String unit) {
+                        out.put(name + ".count", (double) count.sum());
+                        out.put(name + ".total" + unit, total.sum());
+                        out.put(name + ".max" + unit, max.get());
+                }
+        }
+
+        private final Distribution suspendLatency = new Distribution();
+        private final Distribution migrationTime = new Distribution();
+        private final Distribution migrationEncodedSize = new Distribution();
+        private final Distribution migrationWireSize = new Distribution();
+        private final ConcurrentHashMap<String, Distribution> requestLatency =
+                new ConcurrentHashMap<String, Distribution>();
+        private final LongAdder processesStarted = new LongAdder();
+        private final LongAdder processesFinished = new LongAdder();
+
+        // A process got a thread from the ProcessRuntime, after a migration too
+        @Override
+        public void processStarted(MigratableProcess process) {
+                processesStarted.increment();
+        }
+
+        // A process returned from run(), finished or suspended
+        @Override
+        public void processFinished(MigratableProcess process) {
+                processesFinished.increment();
+        }
+
+        // Milliseconds a process took to reach a safe point when suspended for migration
+        public void recordSuspendLatency(double millis) {
+                suspendLatency.record(millis);
+        }
+
+        public Distribution getSuspendLatency() {
+                return suspendLatency;
+        }
+
+        /**
+         * recordMigration: One process sent to another node
+         * @param millis From the suspend request until the target confirmed
+         */
+        public void recordMigration(double millis) {
+                migrationTime.record(millis);
+        }
+
+        /**
+         * recordMigrationSize: Size of a migrated process
+         * @param encodedSize Its encoded state
+         * @param wireSize What was actually sent, after compression or pre-copy
+         */
+        public void recordMigrationSize(long encodedSize, long wireSize) {
+                migrationEncodedSize.record(encodedSize);
+                migrationWireSize.record(wireSize);
+        }
+
+        // Time the Server took to answer a request, queueing included
+        public void recordRequest(String type, long nanos) {
+                Distribution latency = requestLatency.get(type);
+                if (latency == null) {
+                        latency = new Distribution();
+                        Distribution raced = requestLatency.putIfAbsent(type, latency);
+                        if (raced != null) {
+                                latency = raced;
+                        }
+                }
+                latency.record(nanos / 1e6);
+        }
+
+        /**
+         * snapshot: Every metric of this node
+         */
+        public Map<String, Double> snapshot(ProcessManager pm, Server server) {
+                Map<String, Double> out = new TreeMap<String, Double>();
+                out.put("node.processes", (double) pm.getProcessTable().size());
+                out.put("queue.control", (double) server.getControlQueueSize());
+                out.put("queue.migration", (double) server.getMigrationQueueSize());
+                out.put("queue.command", (double) server.getCommandQueueSize());
+                out.put("queue.pendingWrites", (double) server.getPendingWriteCount());
+                out.put("runtime.started", (double) processesStarted.sum());
+                out.put("runtime.finished", (double) processesFinished.sum());
+                out.put("runtime.queueDepth", (double) pm.getRuntime().getQueueDepth());
+                out.put("runtime.running", (double) pm.getRuntime().getRunningCount());
+
+                suspendLatency.snapshot(out, "suspend.latency", "Ms");
+                migrationTime.snapshot(out, "migration.time", "Ms");
+                migrationEncodedSize.snapshot(out, "migration.encodedSize", "Bytes");
+                migrationWireSize.snapshot(out, "migration.wireSize", "Bytes");
+
+                Iterator<Map.Entry<String, Distribution>> itr = requestLatency.entrySet().iterator();
+                while (itr.hasNext()) {
+                        Map.Entry<String, Distribution> entry = itr.next();
+                        entry.getValue().snapshot(out, "request." + entry.getKey(), "Ms");
+                }
+
+                long now = System.currentTimeMillis();
+                Object[] processes = pm.getAllProcesses();
+                for (int i = 0; i < processes.length; i++) {
+                        processSnapshot(out, (MigratableProcess) processes[i], now);
+                }
+                return out;
+        }
+
+        private static void processSnapshot(Map<String, Double> out, MigratableProcess process, long now) {
+                String name = "process." + process.getProcID() + ".";
+                long bytes = 0;
+
+                TransactionalFileInputStream[] inputs = process.getInputFiles();
+                for (int i = 0; i < inputs.length; i++) {
+                        out.put(name + "input" + i + ".bytesRead", (double) inputs[i].getBytesRead());
+                        out.put(name + "input" + i + ".linesRead", (double) inputs[i].getLinesRead());
+                        bytes += inputs[i].getBytesRead();
+                }
+                TransactionalFileOutputStream[] outputs = process.getOutputFiles();
+                for (int i = 0; i < outputs.length; i++) {
+                        out.put(name + "output" + i + ".bytesWritten", (double) outputs[i].getBytesWritten());
+                        out.put(name + "output" + i + ".linesWritten", (double) outputs[i].getLinesWritten());
+                        bytes += outputs[i].getBytesWritten();
+                }
+
+                double seconds = process.getStartTime() == 0 ? 0 : (now - process.getStartTime()) / 1000.0;
+                out.put(name + "runtimeMs", seconds * 1000);
+                out.put(name + "bytesPerSec", seconds > 0 ? bytes / seconds : 0);
+        }
+
+        /**
+         * aggregate: Combine the snapshots of several hosts into one
+         */
+        public static Map<String, Double> aggregate(Iterable<Map<String, Double>> snapshots) {
+                Map<String, Double> total = new TreeMap<String, Double>();
+                for (Map<String, Double> snapshot : snapshots) {
+                        Iterator<Map.Entry<String, Double>> itr = snapshot.entrySet().iterator();
+                        while (itr.hasNext()) {
+                                Map.Entry<String, Double> entry = itr.next();
+                                Double previous = total.get(entry.getKey());
+                                double value = entry.getValue();
+                                if (previous != null) {
+                                        value = isMax(entry.getKey()) ? Math.max(previous, value) : previous + value;
+                                }
+                                total.put(entry.getKey(), value);
+                        }
+                }
+                return total;
+        }
+
+        private static boolean isMax(String name) {
+                return name.substring(name.lastIndexOf('.') + 1).startsWith("max");
+        }
+
+        public static void print(Map<String, Double> snapshot) {
+                Iterator<Map.Entry<String, Double>> itr = snapshot.entrySet().iterator();
+                while (itr.hasNext()) {
+                        Map.Entry<String, Double> entry = itr.next();
+                        double value = entry.getValue();
+                        String formatted = value == Math.rint(value) && Math.abs(value) < 1e15
+                                ? String.format("%d", (long) value) : String.format("%.3f", value);
+                        System.out.println(String.format("%-50s %s", entry.getKey(), formatted));
+                }
+        }
+}
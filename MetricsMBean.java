@@ -0,0 +1,85 @@
+/**
+ * MetricsMBean: Publishes the Metrics of this node over JMX, as
+ * com.company:type=Metrics with one read-only attribute per metric.
+ * Attributes come and go with the processes and request types seen, so the
+ * bean is dynamic and takes a fresh snapshot whenever it is asked.
+ */
+package com.company;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+public class MetricsMBean implements DynamicMBean {
+
+        private ProcessManager pm;
+
+        public MetricsMBean(ProcessManager pm) {
+                this.pm = pm;
+        }
+
+        // Register with the platform MBean server, a failure only costs the JMX view
+        public static void register(ProcessManager pm) {
+                try {
+                        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(pm),
+                                new ObjectName("com.company:type=Metrics"));
+                } catch (JMException e) {
+                        System.err.println("Could not register metrics with JMX: " + e.getMessage());
+                }
+        }
+
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+                Double value = pm.getStats().get(name);
+                if (value == null) {
+                        throw new AttributeNotFoundException(name);
+                }
+                return value;
+        }
+
+        public AttributeList getAttributes(String[] names) {
+                Map<String, Double> stats = pm.getStats();
+                AttributeList list = new AttributeList();
+                for (String name : names) {
+                        Double value = stats.get(name);
+                        if (value != null) {
+                                list.add(new Attribute(name, value));
+                        }
+                }
+                return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+                throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+                return new AttributeList();
+        }
+
+        // No operations, only attributes
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+                throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+                Map<String, Double> stats = pm.getStats();
+                MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[stats.size()];
+                Iterator<String> itr = stats.keySet().iterator();
+                for (int i = 0; itr.hasNext(); i++) {
+                        attributes[i] = new MBeanAttributeInfo(itr.next(), "java.lang.Double", "", true, false, false);
+                }
+                return new MBeanInfo(getClass().getName(), "Migratable process node metrics", attributes,
+                        null, new MBeanOperationInfo[0], null);
+        }
+}
@@ -7,12 +7,18 @@
  */
 package com.company;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -25,7 +31,7 @@ import java.util.concurrent.CopyOnWriteArraySet;
 public abstract class MigratableProcess implements Serializable, Runnable {
 
         // Process ID
-        public int procID;
+        public long procID;
 
         // Set of arguments to the process
         protected List<String> procArgs;
@@ -36,6 +42,48 @@ public abstract class MigratableProcess implements Serializable, Runnable {
         // Quit flag for when we want to stop the thread
         public volatile boolean should_quit;
 
+        // Default bound on how long suspend() waits for the process to reach a safe point
+        public static final long SUSPEND_TIMEOUT = 10 * 1000;
+
+        // Released by the process once it has reached a safe point after a suspend request
+        private transient CountDownLatch safePoint;
+
+        // Released by suspend() and stop() to wake the process up from pause()
+        private transient CountDownLatch wakeUp;
+
+        // Set once run() has returned
+        private transient volatile boolean finished;
+
+        // Released once the thread that ran the process has told its listener it is done
+        private transient CountDownLatch exited;
+
+        // Set while a suspend request is pending, and whether run() returned without one (or a stop)
+        private transient boolean suspendRequested;
+        private transient volatile boolean completed;
+
+        // The ShardedJob this process is a shard of: the node running the job, its ID and the shard
+        private String jobHost;
+        private long jobId;
+        private int shard = -1;
+
+        // Work units per second the process is held to, 0 if it runs at full speed
+        private double rate;
+
+        // Token bucket for rate, null while the process is not paced
+        private transient volatile Pacer pacer;
+
+        // When the process was last migrated to this node, 0 if it started here
+        private transient long arrivalTime;
+
+        // When the process started running on this node
+        private transient long startTime;
+
+        // How long the last suspend() took, in nanoseconds
+        private transient long lastSuspendLatency;
+
+        // Bumped by markDirty() whenever the state written by writeState() changes
+        private transient volatile long stateVersion;
+
         // To keep track of the parent process which should be notified after thread death
         protected transient ThreadCompletionListeners listener;
 
@@ -54,7 +102,37 @@ public abstract class MigratableProcess implements Serializable, Runnable {
         // Signal a listener of thread death
         public void signalListeners()
         {
-              listener.notifyOfThreadCompletion(this);
+              synchronized (this) {
+                      finished = true;
+                      completed = !suspendRequested && !should_quit;
+                      suspendRequested = false;
+                      if (safePoint != null)
+                              safePoint.countDown();
+              }
+              try {
+                      listener.notifyOfThreadCompletion(this);
+              } finally {
+                      CountDownLatch latch;
+                      synchronized (this) {
+                              latch = exited;
+                      }
+                      if (latch != null)
+                              latch.countDown();
+              }
+        }
+
+        /**
+         * awaitExit: Wait for the thread that last ran the process to be done with
+         * it, listener included. suspend() returns at the safe point, before that.
+         * @return false if it was not done within timeout milliseconds
+         */
+        public boolean awaitExit(long timeout) throws InterruptedException
+        {
+                CountDownLatch latch;
+                synchronized (this) {
+                        latch = exited;
+                }
+                return latch == null || latch.await(timeout, TimeUnit.MILLISECONDS);
         }
 
         // Constructor
@@ -62,10 +140,22 @@ public abstract class MigratableProcess implements Serializable, Runnable {
         {
                 // Store arguments
                 this.procArgs = new ArrayList<String>(Arrays.asList(args));
-                this.procID = Integer.parseInt(args[args.length - 1]);
+                this.procID = Long.parseLong(args[args.length - 1]);
                 this.suspend_flag = false;
                 this.should_quit = false;
                 this.listener = null;
+
+                // e.g. -Dpacing.GrepProcess=1 for one line a second
+                String pacing = System.getProperty("pacing." + getClass().getSimpleName());
+                if (pacing != null)
+                        setRate(Double.parseDouble(pacing));
+        }
+
+        // The pacer is not serialized, rebuild it from the rate
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+        {
+                in.defaultReadObject();
+                setRate(rate);
         }
 
         // Run method for the process
@@ -74,28 +164,325 @@ public abstract class MigratableProcess implements Serializable, Runnable {
         // Pre-processing required before migration
         public abstract void migrationPreProcess();
 
+        /**
+         * writeState: Externalizable-style hook for the compact wire format (MessageCodec).
+         * The process is rebuilt on the other side through its String[] constructor, so
+         * only state that the constructor does not recreate needs to be written here.
+         * Processes that don't override this are sent with Java serialization instead.
+         * A process overriding writeState() must override readState() to match.
+         */
+        protected void writeState(DataOutput out) throws IOException
+        {
+        }
+
+        // Restore the state written by writeState(), called right after construction
+        protected void readState(DataInput in) throws IOException
+        {
+        }
+
+        // Record that the process has just been migrated to this node
+        public void markArrived()
+        {
+                arrivalTime = System.currentTimeMillis();
+        }
+
+        public long getArrivalTime()
+        {
+                return arrivalTime;
+        }
+
+        /**
+         * markStarted: Record that the process starts running on this node. A
+         * process run again after a suspend that did not lead anywhere, e.g. a
+         * failed migration, starts over with a fresh safe point handshake.
+         */
+        public synchronized void markStarted()
+        {
+                startTime = System.currentTimeMillis();
+                finished = false;
+                completed = false;
+                suspendRequested = false;
+                suspend_flag = false;
+                safePoint = null;
+                wakeUp = null;
+                exited = new CountDownLatch(1);
+        }
+
+        public long getStartTime()
+        {
+                return startTime;
+        }
+
+        // Files read by the process, shipped with it when migration.shipFiles is on
+        protected TransactionalFileInputStream[] getInputFiles()
+        {
+                return new TransactionalFileInputStream[0];
+        }
+
+        // Files written by the process, shipped with it when migration.shipFiles is on. Files
+        // created later should be named after these paths, which are relocated with the process.
+        protected TransactionalFileOutputStream[] getOutputFiles()
+        {
+                return new TransactionalFileOutputStream[0];
+        }
+
+        /**
+         * isShardable: Whether a ShardedJob may run the process as shards, each
+         * restricted to a range of the input with setInputRange(). By default a
+         * process that reads one input file into one output file is. Processes
+         * with their own idea of where they are in the input override this.
+         */
+        public boolean isShardable()
+        {
+                return getInputFiles().length == 1 && getOutputFiles().length == 1;
+        }
+
+        /**
+         * setInputRange: Make the process work on the lines in [start, end) of its
+         * input only, as a shard of a ShardedJob. start and end are line boundaries.
+         * Only called on processes that are isShardable().
+         */
+        protected void setInputRange(long start, long end)
+        {
+                getInputFiles()[0].setRange(start, end);
+        }
+
+        // Mark this process as shard number shard of job jobId, run by jobHost
+        public void setShard(String jobHost, long jobId, int shard)
+        {
+                this.jobHost = jobHost;
+                this.jobId = jobId;
+                this.shard = shard;
+        }
+
+        // Host running the job this process is a shard of, null if it is not part of a job
+        public String getJobHost()
+        {
+                return jobHost;
+        }
+
+        public long getJobId()
+        {
+                return jobId;
+        }
+
+        public int getShard()
+        {
+                return shard;
+        }
+
+        // True once run() has returned because the process was done, not to be suspended or stopped
+        public boolean isCompleted()
+        {
+                return completed;
+        }
+
+        // True once run() has returned, whether the process was done, stopped or suspended
+        public boolean isFinished()
+        {
+                return finished;
+        }
+
+        // Bring the process into a consistent on-disk state for a checkpoint, e.g. flush output
+        protected void checkpointPreProcess() throws IOException
+        {
+        }
+
+        /**
+         * checkpoint: Encode the process for the CheckpointService while it keeps running.
+         * Processes change their state inside synchronized (this), so holding the
+         * monitor here gives a consistent snapshot between two records.
+         */
+        public byte[] checkpoint() throws IOException
+        {
+                synchronized (this) {
+                        checkpointPreProcess();
+                        return MessageCodec.toBytes(this);
+                }
+        }
+
         // Suspend method should allow the object to enter a safe state so that it can be serialized
-	public void suspend() throws InterruptedException
+	public boolean suspend() throws InterruptedException
         {
-                suspend_flag = true;
-                while (suspend_flag)
-                        Thread.sleep(10);
+                return suspend(SUSPEND_TIMEOUT);
+        }
+
+        /**
+         * suspend: Ask the process to stop at its next safe point and wait for it to get there.
+         * A process sleeping in pause() is woken up straight away.
+         * @param timeout: Milliseconds to wait for the safe point
+         * @return true once the process is in a safe state, false if it did not get there in time
+         * (the suspend request is withdrawn and the process keeps running)
+         */
+        public boolean suspend(long timeout) throws InterruptedException
+        {
+                long start = System.nanoTime();
+                CountDownLatch latch;
+                synchronized (this) {
+                        if (finished)
+                                return true;
+                        latch = safePoint = new CountDownLatch(1);
+                        suspend_flag = true;
+                        suspendRequested = true;
+                        wakeUpLatch().countDown();
+                }
+                wakeUpPacer(pacer);
+
+                boolean reached = latch.await(timeout, TimeUnit.MILLISECONDS);
+                synchronized (this) {
+                        if (!reached && latch.getCount() > 0) {
+                                suspend_flag = false;
+                                suspendRequested = false;
+                                wakeUp = null;
+                                return false;
+                        }
+                }
+                lastSuspendLatency = System.nanoTime() - start;
+                return true;
+        }
+
+        // Called by the process when it has stopped for a suspend request and its state is safe to serialize
+        protected synchronized void reachedSafePoint()
+        {
+                suspend_flag = false;
+                wakeUp = null;
+                if (safePoint != null)
+                        safePoint.countDown();
+        }
+
+        /**
+         * markDirty: Tell the framework that the process state has changed since the
+         * last snapshot. Pre-copy migration skips rounds while the version stays the same.
+         */
+        protected void markDirty()
+        {
+                stateVersion++;
+        }
+
+        public long getStateVersion()
+        {
+                return stateVersion;
         }
 
         // Stop method sets the should_quit flag
         public void stop() throws InterruptedException
         {
                 should_quit = true;
+                wakeUpLatch().countDown();
+                wakeUpPacer(pacer);
+        }
+
+        /**
+         * pause: Sleep for up to millis milliseconds. Returns early as soon as
+         * the process is asked to suspend or stop, or its thread is interrupted.
+         * The interrupt stays set for the caller.
+         */
+        protected void pause(long millis)
+        {
+                try {
+                        wakeUpLatch().await(millis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                        // woken up by the runtime, the caller checks its flags next
+                        Thread.currentThread().interrupt();
+                }
+        }
+
+        /**
+         * setRate: Hold the process to rate work units per second from now on,
+         * or let it run at full speed if rate is 0. The rate moves with the process.
+         * A process waiting under the old rate goes on at the new one.
+         */
+        public void setRate(double rate)
+        {
+                if (rate < 0 || Double.isNaN(rate))
+                        throw new IllegalArgumentException("The rate must not be negative: " + rate);
+                Pacer old = pacer;
+                this.rate = rate;
+                pacer = rate > 0 ? new Pacer(rate) : null;
+                wakeUpPacer(old);
+        }
+
+        // Work units per second, 0 if the process is not paced
+        public double getRate()
+        {
+                return rate;
+        }
+
+        // What the process counts against its rate, shown with it
+        public String getRateUnit()
+        {
+                return "records";
+        }
+
+        /**
+         * pace: Count units of work against the rate and wait until the process
+         * is back within it. Returns early as soon as the process is asked to
+         * suspend or stop, its rate changes or its thread is interrupted, with
+         * the interrupt still set. Costs a field read when the process is not paced.
+         */
+        protected void pace(long units)
+        {
+                Pacer p = pacer;
+                if (p == null)
+                        return;
+                long wait = p.take(units);
+                if (wait == 0)
+                        return;
+
+                long deadline = System.nanoTime() + wait;
+                synchronized (p) {
+                        long left;
+                        while (pacer == p && !suspend_flag && !should_quit
+                                        && (left = deadline - System.nanoTime()) > 0) {
+                                try {
+                                        TimeUnit.NANOSECONDS.timedWait(p, left);
+                                } catch (InterruptedException e) {
+                                        // woken up by the runtime, the caller checks its flags next
+                                        Thread.currentThread().interrupt();
+                                        return;
+                                }
+                        }
+                }
+        }
+
+        // Most units worth doing before the next pace(), at most units
+        protected long paceLimit(long units)
+        {
+                Pacer p = pacer;
+                return p == null ? units : Math.min(units, p.getBurst());
+        }
+
+        // Wake up a process waiting in pace() to look at its flags and rate again
+        private static void wakeUpPacer(Pacer p)
+        {
+                if (p != null) {
+                        synchronized (p) {
+                                p.notifyAll();
+                        }
+                }
+        }
+
+        private synchronized CountDownLatch wakeUpLatch()
+        {
+                if (wakeUp == null)
+                        wakeUp = new CountDownLatch(1);
+                return wakeUp;
+        }
+
+        // Time the last successful suspend() took to reach a safe point, in milliseconds
+        public double getLastSuspendLatency()
+        {
+                return lastSuspendLatency / 1e6;
         }
 
         // Get process Id
-        public int getProcID()
+        public long getProcID()
         {
                 return procID;
         }
 
         // Set process ID
-        public void setProcID(int procID)
+        public void setProcID(long procID)
         {
                 this.procID = procID;
         }
@@ -109,16 +496,12 @@ public abstract class MigratableProcess implements Serializable, Runnable {
                 StringBuffer buf = new StringBuffer();
                 buf.append(this.getClass().getSimpleName());
                 buf.append("(PID: " + procID + ") - ");
-                for(int i = 0; i < procArgs.size(); i++) {
+                // The last argument is the procID, which stays the same across migrations
+                for(int i = 0; i < procArgs.size() - 1; i++) {
                         if(i > 0){
                                 buf.append(", ");
                         }
-
-                        if(i == (procArgs.size() - 1)) {
-                        	buf.append("(Old pid: " + procArgs.get(i) + ")");
-                        } else {
-                        	buf.append(procArgs.get(i));
-                        }
+                        buf.append(procArgs.get(i));
                 }
                 return buf.toString();
         }
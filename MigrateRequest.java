@@ -5,19 +5,30 @@
 package com.company;
 
 public class MigrateRequest extends Request {
-	private int processID;
+	private long processID;
 	private String hostTo;
+	// Use iterative pre-copy instead of stop-and-copy
+	private boolean live;
 
-	public MigrateRequest(int processID, String hostTo) {
+	public MigrateRequest(long processID, String hostTo) {
+		this(processID, hostTo, false);
+	}
+
+	public MigrateRequest(long processID, String hostTo, boolean live) {
 		this.processID = processID;
 		this.hostTo = hostTo;
+		this.live = live;
 	}
 	
-	public int getProcessID() {
+	public long getProcessID() {
 		return processID;
 	}
 	
 	public String getHostTo() {
 		return hostTo;
 	}
+
+	public boolean isLive() {
+		return live;
+	}
 }
@@ -0,0 +1,49 @@
+/**
+ * MigrationStats: What it cost to put one process on the wire:
+ * encoded size, size after compression, the codec that was picked and
+ * the CPU time spent compressing.
+ */
+package com.company;
+
+public class MigrationStats {
+
+        private int encodedSize;
+        private int compressedSize;
+        private byte codec;
+        private long compressionCpuTime;
+
+        void record(int encodedSize, int compressedSize, byte codec, long compressionCpuTime) {
+                this.encodedSize = encodedSize;
+                this.compressedSize = compressedSize;
+                this.codec = codec;
+                this.compressionCpuTime = compressionCpuTime;
+        }
+
+        public int getEncodedSize() {
+                return encodedSize;
+        }
+
+        public int getCompressedSize() {
+                return compressedSize;
+        }
+
+        public byte getCodec() {
+                return codec;
+        }
+
+        // CPU time spent compressing, in nanoseconds
+        public long getCompressionCpuTime() {
+                return compressionCpuTime;
+        }
+
+        // Encoded size divided by the size actually sent
+        public double getCompressionRatio() {
+                return compressedSize == 0 ? 1 : (double) encodedSize / compressedSize;
+        }
+
+        public String toString() {
+                return encodedSize + " bytes -> " + compressedSize + " bytes (" + Compression.name(codec)
+                        + ", ratio " + String.format("%.2f", getCompressionRatio())
+                        + ", " + String.format("%.3f", compressionCpuTime / 1e6) + " ms CPU)";
+        }
+}
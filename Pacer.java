@@ -0,0 +1,51 @@
+/**
+ * Pacer: Token bucket holding a process to a rate of work units per second.
+ * What a unit is, a byte or a record, is up to the process. The bucket holds
+ * a tenth of a second of work, but at least one unit, so a paced process works
+ * in small steps rather than in bursts. Work taken beyond the tokens in the
+ * bucket is owed, and the process waits until it has been paid back.
+ */
+package com.company;
+
+public class Pacer {
+
+        // Seconds of work the bucket holds
+        private static final double BURST_SECONDS = 0.1;
+
+        private final double rate;
+        private final long burst;
+        private double tokens;
+        private long lastRefill;
+
+        public Pacer(double rate) {
+                if (!(rate > 0)) {
+                        throw new IllegalArgumentException("The rate must be positive: " + rate);
+                }
+                this.rate = rate;
+                this.burst = Math.max(1, (long) (rate * BURST_SECONDS));
+                this.tokens = burst;
+                this.lastRefill = System.nanoTime();
+        }
+
+        // Units per second
+        public double getRate() {
+                return rate;
+        }
+
+        // Most units the bucket holds, the largest step worth taking at once
+        public long getBurst() {
+                return burst;
+        }
+
+        /**
+         * take: Take units of work from the bucket
+         * @return nanoseconds to wait before the rate is met again, 0 if none
+         */
+        public synchronized long take(long units) {
+                long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+                lastRefill = now;
+                tokens -= units;
+                return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+}
@@ -0,0 +1,381 @@
+/**
+ * ParallelGrepProcess: Grep that scans the input on several cores.
+ * The input is split into byte ranges that start at line boundaries. Every
+ * range is scanned by its own worker thread with its own input offset and
+ * writes its matches to its own part file, the first range straight to the
+ * output file. Once all ranges are done the parts are appended to the output
+ * in order, so matches come out in file order.
+ *
+ * The pattern is a literal, searched with Boyer-Moore-Horspool, or with -E a
+ * java.util.regex pattern. The ranges and their offsets are the process
+ * state, so the whole job is suspended and migrated as one process.
+ */
+package com.company;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class ParallelGrepProcess extends MigratableProcess {
+
+        private enum Phase { SCAN, CONCAT, DONE }
+
+        // Ranges are not made smaller than this
+        private static final long MIN_RANGE_SIZE = 1024 * 1024;
+
+        // Lines a worker scans between two checks of the suspend/quit flags
+        private static final int BATCH_LINES = 1024;
+
+        // Bytes appended between two checks of the suspend/quit flags
+        private static final long CHUNK_SIZE = 8 * 1024 * 1024;
+
+        // One range of the input and the matches found in it
+        private static class Range {
+                TransactionalFileInputStream in;
+                long end;
+                TransactionalFileOutputStream out;
+                boolean done;
+
+                // Bytes of out already appended to the output file
+                long copied;
+
+                void writeState(DataOutput stream) throws IOException {
+                        in.writeState(stream);
+                        WireFormat.writeVarLong(stream, end);
+                        out.writeState(stream);
+                        stream.writeBoolean(done);
+                        WireFormat.writeVarLong(stream, copied);
+                }
+
+                void readState(DataInput stream) throws IOException {
+                        in = new TransactionalFileInputStream((String) null);
+                        in.readState(stream);
+                        end = WireFormat.readVarLong(stream);
+                        out = new TransactionalFileOutputStream(null);
+                        out.readState(stream);
+                        done = stream.readBoolean();
+                        copied = WireFormat.readVarLong(stream);
+                }
+        }
+
+        private String query;
+        private boolean regex;
+        private String inputPath;
+        private String outputPath;
+        private int rangeCount;
+        private Phase phase = Phase.SCAN;
+
+        // Split on the first run. Range 0 writes to the output file.
+        private Range[] ranges;
+
+        // Next part to append to the output file
+        private int concatenated = 1;
+
+        private transient LineMatcher matcher;
+
+        public ParallelGrepProcess(String[] args) throws Exception {
+                super(args);
+
+                int i = args.length > 0 && args[0].equals("-E") ? 1 : 0;
+                int remaining = args.length - 1 - i;
+                if (remaining != 3 && remaining != 4) {
+                        System.out.println("Synopsis: ParallelGrepProcess [-E] <pattern> <inputFile> <outputFile> [ranges]");
+                        throw new Exception("Invalid Arguments");
+                }
+
+                regex = i == 1;
+                query = args[i];
+                inputPath = args[i + 1];
+                outputPath = args[i + 2];
+                rangeCount = remaining == 4 ? Integer.parseInt(args[i + 3])
+                        : Runtime.getRuntime().availableProcessors();
+                if (rangeCount <= 0) {
+                        System.out.println("ParallelGrepProcess: the number of ranges must be positive");
+                        throw new Exception("Invalid Arguments");
+                }
+                // Fail on a bad pattern here rather than in the workers
+                matcher = regex ? LineMatcher.regex(query) : LineMatcher.literal(query);
+        }
+
+        @Override
+        public void run() {
+                try {
+                        if (matcher == null) {
+                                matcher = regex ? LineMatcher.regex(query) : LineMatcher.literal(query);
+                        }
+                        synchronized (this) {
+                                if (ranges == null) {
+                                        ranges = split();
+                                        markDirty();
+                                }
+                        }
+
+                        if (phase == Phase.SCAN) {
+                                scan();
+                        }
+                        if (phase == Phase.CONCAT) {
+                                concat();
+                        }
+
+                        for (Range range : ranges) {
+                                range.in.closeFile();
+                                range.out.closeFile();
+                        }
+                        if (phase == Phase.DONE) {
+                                deleteParts();
+                                // The output file does not exist yet if nothing matched
+                                new File(ranges[0].out.getFilePath()).createNewFile();
+                        } else if (should_quit) {
+                                deleteParts();
+                        }
+                        reachedSafePoint();
+                } catch (IOException e) {
+                        System.out.println("ParallelGrepProcess: Error: " + e);
+                } finally {
+                        signalListeners();
+                }
+        }
+
+        private void deleteParts() {
+                for (int i = 1; i < ranges.length; i++) {
+                        new File(ranges[i].out.getFilePath()).delete();
+                }
+        }
+
+        // Cut the input into rangeCount ranges of about the same size that start at line boundaries
+        private Range[] split() throws IOException {
+                long[] starts = TransactionalFileInputStream.splitLines(inputPath, rangeCount, MIN_RANGE_SIZE);
+                int count = starts.length - 1;
+                Range[] split = new Range[count];
+                for (int k = 0; k < count; k++) {
+                        Range range = new Range();
+                        range.in = new TransactionalFileInputStream(inputPath, true);
+                        range.in.seek(starts[k]);
+                        range.end = starts[k + 1];
+                        range.done = starts[k] >= range.end;
+                        String path = outputPath;
+                        if (k > 0) {
+                                // A part left over from an earlier run is written again from the start
+                                path = outputPath + ".part" + k;
+                                new File(path).delete();
+                        }
+                        range.out = new TransactionalFileOutputStream(path);
+                        split[k] = range;
+                }
+                return split;
+        }
+
+        // Scan the unfinished ranges in parallel until all are done or the process is suspended
+        private void scan() throws IOException {
+                List<Range> pending = new ArrayList<Range>();
+                for (Range range : ranges) {
+                        if (!range.done) {
+                                pending.add(range);
+                        }
+                }
+
+                if (!pending.isEmpty()) {
+                        final long id = procID;
+                        ExecutorService workers = Executors.newFixedThreadPool(pending.size(), new ThreadFactory() {
+                                public Thread newThread(Runnable r) {
+                                        Thread t = new Thread(r, "ParallelGrep-" + id);
+                                        t.setDaemon(true);
+                                        return t;
+                                }
+                        });
+                        try {
+                                List<Future<Object>> results = new ArrayList<Future<Object>>();
+                                for (final Range range : pending) {
+                                        results.add(workers.submit(new Callable<Object>() {
+                                                public Object call() throws IOException {
+                                                        scan(range, matcher.copy());
+                                                        return null;
+                                                }
+                                        }));
+                                }
+                                for (Future<Object> result : results) {
+                                        result.get();
+                                }
+                        } catch (ExecutionException e) {
+                                should_quit = true;
+                                throw e.getCause() instanceof IOException
+                                        ? (IOException) e.getCause() : new IOException(e.getCause());
+                        } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new IOException("Interrupted while scanning");
+                        } finally {
+                                workers.shutdown();
+                        }
+                }
+
+                synchronized (this) {
+                        for (Range range : ranges) {
+                                if (!range.done) {
+                                        return;
+                                }
+                        }
+                        phase = Phase.CONCAT;
+                        markDirty();
+                }
+        }
+
+        // Scan one range. Its lock keeps its input and output offsets in step for a checkpoint.
+        private void scan(Range range, LineMatcher lines) throws IOException {
+                while (!suspend_flag && !should_quit) {
+                        // The workers share the rate of the process
+                        int batch = (int) paceLimit(BATCH_LINES);
+                        synchronized (range) {
+                                for (int n = 0; n < batch; n++) {
+                                        CharBuffer line = null;
+                                        if (range.in.getFileOffset() < range.end) {
+                                                line = range.in.readLineView();
+                                        }
+                                        if (line == null) {
+                                                range.out.flush();
+                                                range.done = true;
+                                                markDirty();
+                                                return;
+                                        }
+                                        if (lines.matches(line)) {
+                                                range.out.writeString(line);
+                                        }
+                                }
+                        }
+                        markDirty();
+                        pace(batch);
+                }
+        }
+
+        // Append the parts to the output file in range order
+        private void concat() throws IOException {
+                TransactionalFileOutputStream output = ranges[0].out;
+                while (concatenated < ranges.length && !suspend_flag && !should_quit) {
+                        Range range = ranges[concatenated];
+                        if (!new File(range.out.getFilePath()).exists()) {
+                                // Nothing matched in this range
+                                synchronized (this) {
+                                        concatenated++;
+                                        markDirty();
+                                }
+                                continue;
+                        }
+                        TransactionalFileInputStream part = new TransactionalFileInputStream(range.out.getFilePath());
+                        part.seek(range.copied);
+                        try {
+                                while (!suspend_flag && !should_quit) {
+                                        synchronized (this) {
+                                                long n = part.transferTo(output, CHUNK_SIZE);
+                                                if (n < 0) {
+                                                        concatenated++;
+                                                        markDirty();
+                                                        break;
+                                                }
+                                                range.copied += n;
+                                                markDirty();
+                                        }
+                                }
+                        } finally {
+                                part.closeFile();
+                        }
+                }
+
+                synchronized (this) {
+                        if (concatenated == ranges.length) {
+                                output.flush();
+                                phase = Phase.DONE;
+                                markDirty();
+                        }
+                }
+        }
+
+        // The ranges are split off the whole input, so this cannot be a shard of a job
+        @Override
+        public boolean isShardable() {
+                return false;
+        }
+
+        @Override
+        public void migrationPreProcess() {
+                if (ranges == null) {
+                        return;
+                }
+                for (Range range : ranges) {
+                        range.in.setFlag(true);
+                        range.out.setFlag(true);
+                }
+        }
+
+        @Override
+        protected TransactionalFileInputStream[] getInputFiles() {
+                if (ranges == null) {
+                        return new TransactionalFileInputStream[0];
+                }
+                TransactionalFileInputStream[] files = new TransactionalFileInputStream[ranges.length];
+                for (int i = 0; i < ranges.length; i++) {
+                        files[i] = ranges[i].in;
+                }
+                return files;
+        }
+
+        @Override
+        protected TransactionalFileOutputStream[] getOutputFiles() {
+                if (ranges == null) {
+                        return new TransactionalFileOutputStream[0];
+                }
+                TransactionalFileOutputStream[] files = new TransactionalFileOutputStream[ranges.length];
+                for (int i = 0; i < ranges.length; i++) {
+                        files[i] = ranges[i].out;
+                }
+                return files;
+        }
+
+        @Override
+        protected void checkpointPreProcess() throws IOException {
+                if (ranges == null) {
+                        return;
+                }
+                for (Range range : ranges) {
+                        synchronized (range) {
+                                range.out.flush();
+                        }
+                }
+        }
+
+        @Override
+        protected void writeState(DataOutput out) throws IOException {
+                out.writeByte(phase.ordinal());
+                WireFormat.writeVarInt(out, concatenated);
+                Range[] current = ranges;
+                WireFormat.writeVarInt(out, current == null ? 0 : current.length);
+                for (int i = 0; current != null && i < current.length; i++) {
+                        synchronized (current[i]) {
+                                current[i].writeState(out);
+                        }
+                }
+        }
+
+        @Override
+        protected void readState(DataInput in) throws IOException {
+                phase = Phase.values()[in.readByte()];
+                concatenated = WireFormat.readVarInt(in);
+                int count = WireFormat.readLength(in);
+                ranges = null;
+                if (count > 0) {
+                        ranges = new Range[count];
+                        for (int i = 0; i < count; i++) {
+                                ranges[i] = new Range();
+                                ranges[i].readState(in);
+                        }
+                }
+        }
+}
@@ -0,0 +1,38 @@
+/**
+ * PrecopyRequest: One step of a pre-copy (live) migration.
+ * START carries the full encoded process, DELTA carries the blocks that changed
+ * since the previous step while the process keeps running, and COMMIT carries
+ * the last delta taken after the process was suspended. On COMMIT the target
+ * rebuilds the process and starts it. ABORT drops the session.
+ */
+package com.company;
+
+public class PrecopyRequest extends Request {
+
+        public static final int START = 0;
+        public static final int DELTA = 1;
+        public static final int COMMIT = 2;
+        public static final int ABORT = 3;
+
+        private long sessionId;
+        private int phase;
+        private StateDelta delta;
+
+        public PrecopyRequest(long sessionId, int phase, StateDelta delta) {
+                this.sessionId = sessionId;
+                this.phase = phase;
+                this.delta = delta;
+        }
+
+        public long getSessionId() {
+                return sessionId;
+        }
+
+        public int getPhase() {
+                return phase;
+        }
+
+        public StateDelta getDelta() {
+                return delta;
+        }
+}
@@ -0,0 +1,20 @@
+/**
+ * ProcessBatch: Several suspended processes sent to one host in a single
+ * frame, used when a host is drained. The target starts all of them.
+ */
+package com.company;
+
+import java.util.List;
+
+public class ProcessBatch extends Request {
+
+        private List<MigratableProcess> processes;
+
+        public ProcessBatch(List<MigratableProcess> processes) {
+                this.processes = processes;
+        }
+
+        public List<MigratableProcess> getProcesses() {
+                return processes;
+        }
+}
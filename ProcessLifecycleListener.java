@@ -0,0 +1,10 @@
+/**
+ * ProcessLifecycleListener: Interface to hear when a ProcessRuntime starts
+ * running a process and when the process returns from run()
+ */
+package com.company;
+
+public interface ProcessLifecycleListener {
+        void processStarted(MigratableProcess process);
+        void processFinished(MigratableProcess process);
+}
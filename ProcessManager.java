@@ -14,42 +14,88 @@ package com.company;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 public class ProcessManager implements ThreadCompletionListeners {
 
-	private int processIDCounter;
-	private ConcurrentLinkedQueue<MigratableProcess> processQueue;
+	private ProcessTable processTable;
 	private Server mServer;
 	private String hostName;
-	private List<String> hostList;
-	private int port = 2048;
+	private CopyOnWriteArrayList<String> hostList;
+	// Port every node of the cluster listens on, node.port (default 2048)
+	private int port = Integer.getInteger("node.port", 2048);
+	private ConnectionPool connectionPool;
+	private ProcessRuntime runtime;
+	private CheckpointService checkpointService;
+	private FileCache fileCache;
+	private FileShipper fileShipper;
+	private LoadBalancer loadBalancer;
+	private Metrics metrics = new Metrics();
+
+	// Sharded jobs run by this node, by job ID
+	private Map<Long, ShardedJob> jobs = new ConcurrentHashMap<Long, ShardedJob>();
+
+	// How long to wait for a control request to be answered
+	private static final long REQUEST_TIMEOUT = 30 * 1000;
+
+	// How long to wait for the target of a migration to take the process or a pre-copy round
+	private static final long MIGRATION_TIMEOUT = 60 * 1000;
+
+	// Pre-copy migration: at most this many delta rounds, stop once a delta is this small,
+	// and leave the process this long to change between rounds
+	private static final int PRECOPY_MAX_ROUNDS = 5;
+	private static final int PRECOPY_STOP_SIZE = 16 * 1024;
+	private static final long PRECOPY_ROUND_INTERVAL = 50;
+	// Returned by precopyMigrate when the process has to be migrated with stop-and-copy
+	private static final int PRECOPY_UNSUPPORTED = -2;
+
+	// How long 'ps' waits for each host before reporting it as timed out
+	private static final long PS_TIMEOUT = 3 * 1000;
+
+	// How long a killed process may take to stop before its thread is interrupted
+	private static final long KILL_GRACE = 1000;
 	
 	
 	private ProcessManager() {
-		processIDCounter = 0;
-		processQueue = new ConcurrentLinkedQueue<MigratableProcess>();
 		mServer = new Server(port, this);
+		connectionPool = new ConnectionPool(port);
+		runtime = ProcessRuntime.fromProperties();
+		runtime.addListener(metrics);
 		try {
 			hostName = InetAddress.getLocalHost().getHostName();
 		} catch (UnknownHostException e) {
 			System.err.println("Could not get host name.");
 			e.printStackTrace();
 		}
-		hostList = new ArrayList<String>();
+		hostList = new CopyOnWriteArrayList<String>();
 		hostList.add(hostName);
+		processTable = ProcessTable.fromProperties(hostName);
+		checkpointService = CheckpointService.fromProperties(this, hostName);
+		fileCache = FileCache.fromProperties(hostName);
+		fileShipper = FileShipper.fromProperties(connectionPool, hostName);
+		loadBalancer = LoadBalancer.fromProperties(this, connectionPool, hostName);
 	}
 	
 	public static void main(String[] args) {
@@ -58,6 +104,15 @@ public class ProcessManager implements ThreadCompletionListeners {
                 // start the server
 		pManager.startMigrationServer();
 
+                // resume the processes checkpointed before the last shutdown
+		pManager.startCheckpointing();
+
+                // publish our load and balance the cluster
+		pManager.loadBalancer.start();
+
+                // publish our metrics over JMX
+		MetricsMBean.register(pManager);
+
                 // start the commandline
 		pManager.acceptCommands();	
 	}
@@ -66,8 +121,26 @@ public class ProcessManager implements ThreadCompletionListeners {
 		new Thread(mServer).start();
 	}
 	
+	private void startCheckpointing() {
+		if(checkpointService == null)
+			return;
+		int resumed = checkpointService.recover();
+		if(resumed > 0)
+			System.out.println("Resumed " + resumed + " checkpointed process(es).");
+		checkpointService.start();
+	}
+
 	public Object[] getAllProcesses() {
-		return processQueue.toArray();
+		return processTable.toArray();
+	}
+
+	public String getHostName() {
+		return hostName;
+	}
+
+	// A snapshot of the hosts, hostList may change while the caller iterates
+	public List<String> getHosts() {
+		return new ArrayList<String>(hostList);
 	}
 
         // ProcessManager commandline
@@ -93,15 +166,78 @@ public class ProcessManager implements ThreadCompletionListeners {
 				printProcesses();
 			} else if(command[0].equals("help")) {
 				printHelpPrompt();			
-			} else if(command[0].equals("migrate")) {
+			} else if(command[0].equals("drain")) {
+				if(command.length == 2) {
+					if(hostName.equals(command[1])) {
+						drainHost();
+					} else {
+						sendRequest(new DrainRequest(), command[1]);
+					}
+				} else {
+					System.out.println("Invalid drain command." +
+                                                " Type help to see the format of the drain command.");
+				}
+			} else if(command[0].equals("stats")) {
+				if(command.length <= 2) {
+					printStats(command.length == 2 ? command[1] : null);
+				} else {
+					System.out.println("Invalid stats command." +
+                                                " Type help to see the format of the stats command.");
+				}
+			} else if(command[0].equals("rate")) {
+				if(command.length == 4) {
+					try {
+						long processID = Long.parseLong(command[1]);
+						double rate = command[3].equals("off") ? 0 : Double.parseDouble(command[3]);
+
+						if(rate < 0) {
+							System.out.println("The rate must not be negative.");
+						} else if(hostName.equals(command[2])) {
+							setRate(processID, rate);
+						} else {
+							sendRequest(new RateRequest(processID, rate), command[2]);
+						}
+					} catch(NumberFormatException e) {
+						System.out.println("Invalid processID or rate specified." +
+                                                        " Type help to see the format of the rate command.");
+					}
+				} else {
+					System.out.println("Invalid rate command." +
+                                                " Type help to see the format of the rate command.");
+				}
+			} else if(command[0].equals("shard")) {
+				if(command.length >= 2) {
+					startJob(Arrays.copyOfRange(command, 1, command.length));
+				} else {
+					System.out.println("Invalid shard command." +
+                                                " Type help to see the format of the shard command.");
+				}
+			} else if(command[0].equals("jobs")) {
+				printJobs();
+			} else if(command[0].equals("load")) {
+				loadBalancer.printLoad();
+			} else if(command[0].equals("balancer")) {
+				LoadBalancer.Mode mode = command.length == 2 ? LoadBalancer.parseMode(command[1]) : null;
+				if(mode != null) {
+					loadBalancer.setMode(mode);
+				} else {
+					System.out.println("Invalid balancer command." +
+                                                " Type help to see the format of the balancer command.");
+				}
+			} else if(command[0].equals("migrate") || command[0].equals("livemigrate")) {
 				if(command.length == 4) {
 					try {
-						int processID = Integer.parseInt(command[1]);
+						long processID = Long.parseLong(command[1]);
+						boolean live = command[0].equals("livemigrate");
 					
 						if(hostName.equals(command[2])) { //send from this host
-							migrateProcess(processID, command[3]);		
+							if(live) {
+								liveMigrateProcess(processID, command[3]);
+							} else {
+								migrateProcess(processID, command[3]);
+							}
 						} else {
-							Request request = new MigrateRequest(processID, command[3]);
+							Request request = new MigrateRequest(processID, command[3], live);
 							sendRequest(request, command[2]);
 						}
 					} catch(NumberFormatException e) {
@@ -116,7 +252,7 @@ public class ProcessManager implements ThreadCompletionListeners {
 			} else if(command[0].equals("kill")) {
 				if(command.length == 3) {
 					try {
-						int processID = Integer.parseInt(command[1]);
+						long processID = Long.parseLong(command[1]);
 					
 						if(hostName.equals(command[2])) { //kill from this host
 							killProcess(processID);
@@ -134,12 +270,13 @@ public class ProcessManager implements ThreadCompletionListeners {
 				}
 			} else if(command[0].equals("addhost")) {
 					if(command.length == 2) {
-						hostList.add(command[1]);	
-						Iterator<String> itr = hostList.iterator();
+						hostList.addIfAbsent(command[1]);
+						List<String> hosts = getHosts();
+						Iterator<String> itr = hosts.iterator();
 						
 						while(itr.hasNext()) {
 							String host = itr.next();
-							sendRequest(new AddHostRequest(hostList), host);						
+							sendRequest(new AddHostRequest(hosts), host);						
 						}
 					} else {
 						System.out.println("Invalid addhost command. "
@@ -182,14 +319,7 @@ public class ProcessManager implements ThreadCompletionListeners {
         private void sendRequest(Request request, String hostTo) {
 			
         	try {
-                        Socket sock = new Socket(hostTo, port);
-                        ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
-                        ObjectInputStream in = new ObjectInputStream(sock.getInputStream());
-                        out.writeObject(request);
-                        Object obj = in.readObject();
-
-                        out.close();
-                        in.close();
+                        Object obj = connectionPool.call(hostTo, request, REQUEST_TIMEOUT);
 
                         // check what kind of response we received
                         if(obj instanceof ProcessListResponse) {
@@ -212,123 +342,336 @@ public class ProcessManager implements ThreadCompletionListeners {
                                         //System.out.println(sock.getInetAddress().getHostName()+ ": Command succeeded.");
                                 }
                                 else{
-                                        System.out.println(sock.getInetAddress().getHostName()+ ": Command failed.");
+                                        System.out.println(hostTo + ": Command failed.");
                                 }
                         }
                 } catch (UnknownHostException e) {
                         System.out.println("Could not find the specified host.");
                 } catch (IOException e) {
-                        System.out.println("An I/O Exception occured while creating the socket. "
+                        System.out.println("An I/O Exception occured while talking to " + hostTo + ". "
                                 + "Perhaps " + hostTo + " is down.");
-                } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
                 }
         }
 
-	public int killProcess(int processID) {
-                Iterator<MigratableProcess> itr = processQueue.iterator();
-                boolean found = false;
+	public int killProcess(long processID) {
+                MigratableProcess process = processTable.get(processID);
                 int ret = 0;
 
-                while (itr.hasNext()) {
-                        MigratableProcess process = itr.next();
-
-                        if (processID == process.getProcID()) {
-                                found = true;
-                                processQueue.remove(process);
-                                try {
-                                        process.stop();
-                                } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                        ret = -1;
-                                }
-                        }
+                if (process == null) {
+                        System.out.println("The process specified was not found. "
+                                + "Type ps to see a list of all running processes.");
+                        return -1;
                 }
 
-                if (!found) {
+                processTable.remove(process);
+                try {
+                        process.stop();
+                        // Wake a process blocked in a sleep or I/O call of its own
+                        if (!process.awaitExit(KILL_GRACE)) {
+                                runtime.interrupt(process);
+                        }
+                } catch (InterruptedException e) {
+                        e.printStackTrace();
                         ret = -1;
-                        System.out.println("The process specified was not found. "
-                                + "Type ps to see a list of all running processes.");
                 }
                 
                 return ret;
         }
 		
+	/**
+	 * setRate: Pace a process of this node at rate work units per second, or let
+	 * it run at full speed if rate is 0
+	 */
+	public int setRate(long processID, double rate) {
+		MigratableProcess process = processTable.get(processID);
+		if(process == null) {
+			System.out.println("The process specified was not found. "
+				+ "Type ps to see a list of all running processes.");
+			return -1;
+		}
+		process.setRate(rate);
+		if(rate > 0) {
+			System.out.println("Process " + processID + " is paced at " + rate + " " + process.getRateUnit() + "/s.");
+		} else {
+			System.out.println("Process " + processID + " runs at full speed.");
+		}
+		return 0;
+	}
+
 	public int addHosts(List<String> hosts) {
 		
 		Iterator<String> itr = hosts.iterator();
 		while(itr.hasNext()) {
 			String host = itr.next();
-			if(!hostList.contains(host)) {
-				hostList.add(host);
-			}
+			hostList.addIfAbsent(host);
 		}
 		return 0;
 	}
 		
-	public int migrateProcess(int processID, String host) {
-		Iterator<MigratableProcess> itr = processQueue.iterator();
-		boolean found = false;
+	public int migrateProcess(long processID, String host) {
+		MigratableProcess process = findForMigration(processID);
+		if(process == null) {
+			return -1;
+		}
 		int ret = 0;
-		
-		while(itr.hasNext()) {
-			MigratableProcess process = itr.next();
-			
-			if(processID == process.getProcID()) {
-				found = true;
-				processQueue.remove(process);
-				//Suspend, serialize the process and send it over.
-				try {
-					process.suspend();
-					process.migrationPreProcess();
-					Socket sock = new Socket(host, port);
-					ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
-					out.writeObject(process);
-					
-				} catch (UnknownHostException e) {
-					ret = -1;
-					System.out.println("Could not find the specified host.");
-				} catch (IOException e) {
-					ret = -1;
-					System.out.println("An I/O Exception occured while creating the socket.");
-				} catch (InterruptedException e) {
-					ret = -1;
-					e.printStackTrace();
-				}
-			}	
+		boolean suspended = false;
+
+		//Suspend, serialize the process and send it over.
+		long start = System.nanoTime();
+		try {
+			if (!process.suspend()) {
+				// The process is still running, keep it here
+				System.out.println("Process " + processID + " did not reach a safe point in time. "
+                                        + "Migration cancelled.");
+				return -1;
+			}
+			suspended = true;
+			recordSuspendLatency(process.getLastSuspendLatency());
+			process.migrationPreProcess();
+			MigratableProcess payload = process;
+			if (fileShipper != null) {
+				payload = fileShipper.ship(process, host);
+			}
+			MigrationStats stats = new MigrationStats();
+			Response resp = (Response) connectionPool.call(host, payload, MIGRATION_TIMEOUT, stats);
+			if (resp.getErrorCode() != 0) {
+				ret = -1;
+				System.out.println(host + ": Failed to restart the migrated process.");
+				restartLocally(process);
+			} else {
+				metrics.recordMigration((System.nanoTime() - start) / 1e6);
+				metrics.recordMigrationSize(stats.getEncodedSize(), stats.getCompressedSize());
+				System.out.println("Migrated process " + processID + " to " + host + ": " + stats);
+			}
+		} catch (SocketTimeoutException e) {
+			// The target may still start the process, running it here too would mean two copies
+			ret = -1;
+			System.out.println(host + " did not answer in time, process " + processID + " is not resumed here.");
+		} catch (UnknownHostException e) {
+			ret = -1;
+			System.out.println("Could not find the specified host.");
+			if (suspended) {
+				restartLocally(process);
+			}
+		} catch (IOException e) {
+			ret = -1;
+			System.out.println("An I/O Exception occured while sending the process to " + host + ".");
+			if (suspended) {
+				restartLocally(process);
+			}
+		} catch (InterruptedException e) {
+			ret = -1;
+			Thread.currentThread().interrupt();
+			if (suspended) {
+				restartLocally(process);
+			}
+		} finally {
+			// Back to RUNNING unless the process has left the table
+			processTable.setState(process, ProcessTable.State.MIGRATING, ProcessTable.State.RUNNING);
 		}
 		
-		if(!found) {
-			ret = -1;
+		return ret;
+	}
+
+	// Move every running process off this node
+	public int drainHost() {
+		return new HostDrain(this, connectionPool, fileShipper, hostName).drain();
+	}
+
+	/**
+	 * findForMigration: Look up a process and mark it MIGRATING
+	 * @return null if it does not run here or is already being migrated
+	 */
+	private MigratableProcess findForMigration(long processID) {
+		MigratableProcess process = processTable.get(processID);
+		if(process == null) {
 			System.out.println("The process specified was not found. "
                                 + "Type ps to see a list of all running processes.");
+			return null;
 		}
-		
-		return ret;
+		if(!processTable.setState(process, ProcessTable.State.RUNNING, ProcessTable.State.MIGRATING)) {
+			System.out.println("Process " + processID + " is already being migrated.");
+			return null;
+		}
+		return process;
 	}
 
-	//Process names are case-sensitive;
-	private <T> void constructProcess(String[] command) {
+	/**
+	 * liveMigrateProcess: Migrate a process with iterative pre-copy.
+	 * The full state is sent while the process keeps running, then rounds of
+	 * changed blocks, and the process is only suspended for the last delta.
+	 * A process that cannot be snapshot while it runs is migrated with
+	 * stop-and-copy instead.
+	 */
+	public int liveMigrateProcess(long processID, String host) {
+		int result = precopyMigrate(processID, host);
+		if(result == PRECOPY_UNSUPPORTED) {
+			System.out.println("Could not snapshot process " + processID + " while it runs, "
+                                + "migrating it with stop-and-copy instead.");
+			return migrateProcess(processID, host);
+		}
+		return result;
+	}
+
+	// Pre-copy part of liveMigrateProcess, PRECOPY_UNSUPPORTED if the process could not be snapshot
+	private int precopyMigrate(long processID, String host) {
+		MigratableProcess process = findForMigration(processID);
+		if(process == null) {
+			return -1;
+		}
+
+		long session = new Random().nextLong();
+		long precopied = 0;
+		int rounds = 0;
+		boolean suspended = false;
+		// Drop the session on the target unless it has the process or may still commit it
+		boolean abort = true;
 		try {
-			@SuppressWarnings("unchecked")
-			Class<T> c = (Class<T>) Class.forName(getPackageName() + command[0]);
-			if(MigratableProcess.class.isAssignableFrom(c) && !Modifier.isAbstract(c.getModifiers()) &&
-					!Modifier.isInterface((c.getModifiers())) ) { 
-				Constructor<T>[] cons = (Constructor<T>[]) c.getConstructors();//returns all constructors!
-				String[] array = Arrays.copyOfRange(command, 1, (command.length + 1));
-				array[command.length - 1] = Integer.toString(generateProcessID());
-				MigratableProcess newProcess = (MigratableProcess) cons[0].newInstance(new Object[]{array});
-				
-				//we now have our process object, add it to the queue and start it
-				addProcessToQueue(newProcess);
+			// Warm the target's file cache, so shipping after the suspend only sends what changed
+			if(fileShipper != null) {
+				fileShipper.shipFiles(process, host);
+			}
+
+			// Full snapshot while the process keeps running
+			long version = process.getStateVersion();
+			byte[] sent = snapshot(process);
+			if(sent == null) {
+				abort = false;
+				return PRECOPY_UNSUPPORTED;
+			}
+			StateDelta delta = StateDelta.compute(new byte[0], sent);
+			if(!precopy(host, session, PrecopyRequest.START, delta)) {
+				return -1;
+			}
+			precopied += delta.size();
+
+			// Send what changed until the deltas are small enough to stop for
+			while(rounds < PRECOPY_MAX_ROUNDS && delta.size() > PRECOPY_STOP_SIZE) {
+				Thread.sleep(PRECOPY_ROUND_INTERVAL);
+				if(process.getStateVersion() == version) {
+					break;
+				}
+				version = process.getStateVersion();
+				byte[] current = snapshot(process);
+				if(current == null) {
+					return PRECOPY_UNSUPPORTED;
+				}
+				delta = StateDelta.compute(sent, current);
+				if(!precopy(host, session, PrecopyRequest.DELTA, delta)) {
+					return -1;
+				}
+				precopied += delta.size();
+				sent = current;
+				rounds++;
+			}
 
-                                // add ourself as the listener
-                                newProcess.addListener(this);
+			// Stop the process for the last delta only
+			long downtimeStart = System.nanoTime();
+			if(!process.suspend()) {
+				System.out.println("Process " + processID + " did not reach a safe point in time. "
+                                        + "Migration cancelled.");
+				return -1;
+			}
+			suspended = true;
+			recordSuspendLatency(process.getLastSuspendLatency());
+			process.migrationPreProcess();
+			MigratableProcess payload = process;
+			if(fileShipper != null) {
+				payload = fileShipper.ship(process, host);
+			}
+			byte[] state = MessageCodec.toBytes(payload);
+			delta = StateDelta.compute(sent, state);
+			if(!precopy(host, session, PrecopyRequest.COMMIT, delta)) {
+				restartLocally(process);
+				return -1;
+			}
+			abort = false;
+			double downtime = (System.nanoTime() - downtimeStart) / 1e6;
+			metrics.recordMigration(downtime);
+			metrics.recordMigrationSize(state.length, precopied + delta.size());
 
-                                // Start the thread
-				new Thread(newProcess).start();
+			System.out.println("Live-migrated process " + processID + " to " + host + ": " + rounds
+                                + " pre-copy rounds, " + precopied + " bytes pre-copied, last delta " + delta.size()
+                                + " bytes, downtime " + String.format("%.3f", downtime) + " ms");
+			return 0;
+		} catch (SocketTimeoutException e) {
+			if(suspended) {
+				// The target may still commit the process, running it here too would mean two copies
+				abort = false;
+				System.out.println(host + " did not answer in time, process " + processID + " is not resumed here.");
 			} else {
-				System.out.println("You have not specified a valid process. Please try again.");
+				System.out.println(host + " did not answer in time. Migration cancelled.");
+			}
+		} catch (IOException e) {
+			System.out.println("An I/O Exception occured while sending the process to " + host + ".");
+			if(suspended) {
+				restartLocally(process);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if(suspended) {
+				restartLocally(process);
+			}
+		} finally {
+			if(abort) {
+				// Best effort, a target that does not hear of it expires the session
+				connectionPool.callAsync(host, new PrecopyRequest(session, PrecopyRequest.ABORT, null),
+					REQUEST_TIMEOUT);
+			}
+			processTable.setState(process, ProcessTable.State.MIGRATING, ProcessTable.State.RUNNING);
+		}
+		return -1;
+	}
+
+	// Resume a process that was suspended for a migration that did not go through
+	void restartLocally(MigratableProcess process) {
+		// The old thread removes the process from the table when it exits, let it do so first
+		try {
+			if(!process.awaitExit(MigratableProcess.SUSPEND_TIMEOUT)) {
+				System.out.println("Process " + process.getProcID() + " did not stop, not resuming it.");
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if(!addProcessToQueue(process)) {
+			System.out.println("Another process " + process.getProcID() + " runs on this node, not resuming it.");
+			return;
+		}
+		System.out.println("Resuming process " + process.getProcID() + " on this node.");
+		process.addListener(this);
+		runProcess(process);
+	}
+
+	// Encode a running process. A snapshot torn by concurrent changes is harmless,
+	// it only makes the next delta bigger.
+	// @return null if the process could not be encoded while it runs
+	private byte[] snapshot(MigratableProcess process) throws IOException {
+		try {
+			return MessageCodec.toBytes(process);
+		} catch (RuntimeException e) {
+			System.out.println("Pre-copy snapshot of process " + process.getProcID() + " failed: " + e);
+			return null;
+		}
+	}
+
+	private boolean precopy(String host, long session, int phase, StateDelta delta) throws IOException {
+		Response resp = (Response) connectionPool.call(host, new PrecopyRequest(session, phase, delta),
+			MIGRATION_TIMEOUT);
+		if(resp.getErrorCode() != 0) {
+			System.out.println(host + ": Pre-copy migration failed.");
+			return false;
+		}
+		return true;
+	}
+
+	//Process names are case-sensitive;
+	private void constructProcess(String[] command) {
+		try {
+			MigratableProcess newProcess = instantiate(command, processTable.nextId());
+			if(newProcess != null) {
+				startProcess(newProcess);
 			}
 		} catch (ClassNotFoundException e) {
 			System.out.println("You have entered an invalid command. Please type 'help' for more "
@@ -340,12 +683,138 @@ public class ProcessManager implements ThreadCompletionListeners {
 		} catch (InvocationTargetException e) {
 			System.out.println("The object constructor threw an exception. Please make sure"
 					+ " the arguments are correctly specified.\n");
+		} catch (ReflectiveOperationException e) {
+			System.err.println("Failed to instantiate the specified process.");
 		}
 		  catch(NoClassDefFoundError e) {
 			  System.out.println("Processes are case-sensitive. Please try again.");
 		}
 	}
 
+	/**
+	 * instantiate: Create the process named by command[0] with the rest of
+	 * command and the process ID as its arguments
+	 * @return null if command[0] is not a process
+	 */
+	<T> MigratableProcess instantiate(String[] command, long processID) throws ReflectiveOperationException {
+		@SuppressWarnings("unchecked")
+		Class<T> c = (Class<T>) Class.forName(getPackageName() + command[0]);
+		if(MigratableProcess.class.isAssignableFrom(c) && !Modifier.isAbstract(c.getModifiers()) &&
+				!Modifier.isInterface((c.getModifiers())) ) { 
+			Constructor<T>[] cons = (Constructor<T>[]) c.getConstructors();//returns all constructors!
+			String[] array = Arrays.copyOfRange(command, 1, (command.length + 1));
+			array[command.length - 1] = Long.toString(processID);
+			return (MigratableProcess) cons[0].newInstance(new Object[]{array});
+		}
+		System.out.println("You have not specified a valid process. Please try again.");
+		return null;
+	}
+
+	// Add a new process to the queue and start it
+	void startProcess(MigratableProcess newProcess) {
+		if(!addProcessToQueue(newProcess)) {
+			System.out.println("Process ID " + newProcess.getProcID() + " is already in use.");
+			return;
+		}
+
+                // add ourself as the listener
+                newProcess.addListener(this);
+
+                // Start the process
+		runProcess(newProcess);
+	}
+
+	// Run command as a sharded job over all hosts, see ShardedJob
+	private void startJob(String[] command) {
+		ShardedJob job = new ShardedJob(this, connectionPool, hostName, processTable.nextId(), command);
+		// Shards report to the job as soon as they are started
+		jobs.put(job.getId(), job);
+		try {
+			if(!job.start()) {
+				jobs.remove(job.getId());
+			}
+		} catch (ClassNotFoundException e) {
+			jobs.remove(job.getId());
+			System.out.println("You have entered an invalid command. Please type 'help' for more "
+				+ "information.\n");
+		} catch (InvocationTargetException e) {
+			jobs.remove(job.getId());
+			System.out.println("The object constructor threw an exception. Please make sure"
+					+ " the arguments are correctly specified.\n");
+		} catch (Exception e) {
+			jobs.remove(job.getId());
+			System.out.println("Could not start the job: " + e);
+		}
+	}
+
+	private void printJobs() {
+		if(jobs.isEmpty()) {
+			System.out.println("No sharded jobs are running on this node.");
+		}
+		for(ShardedJob job : jobs.values()) {
+			job.print();
+		}
+	}
+
+	// A shard of one of the jobs of this node has finished on host
+	int shardDone(long jobId, int shard, long processID, String host) {
+		ShardedJob job = jobs.get(jobId);
+		if(job == null) {
+			return -1;
+		}
+		job.shardDone(shard, processID, host);
+		return 0;
+	}
+
+	// The shards of job jobId of jobHost running here, and how far they got
+	ShardStatusResponse shardStatus(String jobHost, long jobId) {
+		List<MigratableProcess> found = new ArrayList<MigratableProcess>();
+		Object[] processes = getAllProcesses();
+		for(int i = 0; i < processes.length; i++) {
+			MigratableProcess process = (MigratableProcess) processes[i];
+			if(jobHost.equals(process.getJobHost()) && process.getJobId() == jobId && process.getShard() >= 0) {
+				found.add(process);
+			}
+		}
+		int[] shards = new int[found.size()];
+		long[] processIDs = new long[found.size()];
+		long[] offsets = new long[found.size()];
+		for(int i = 0; i < shards.length; i++) {
+			MigratableProcess process = found.get(i);
+			shards[i] = process.getShard();
+			processIDs[i] = process.getProcID();
+			offsets[i] = process.getInputFiles()[0].getFileOffset();
+		}
+		return new ShardStatusResponse(0, shards, processIDs, offsets);
+	}
+
+	void jobFinished(ShardedJob job) {
+		jobs.remove(job.getId());
+	}
+
+	// Tell the node running its job that a shard running here has finished
+	private void reportShardDone(MigratableProcess process) {
+		if(hostName.equals(process.getJobHost())) {
+			ShardedJob job = jobs.get(process.getJobId());
+			if(job != null) {
+				job.notifyOfThreadCompletion(process);
+			}
+			return;
+		}
+		final long processID = process.getProcID();
+		final String jobHost = process.getJobHost();
+		connectionPool.callAsync(jobHost,
+				new ShardDoneRequest(process.getJobId(), process.getShard(), processID, hostName))
+			.whenComplete(new BiConsumer<Object, Throwable>() {
+				public void accept(Object obj, Throwable error) {
+					if(error != null || ((Response) obj).getErrorCode() != 0) {
+						System.out.println("Could not tell " + jobHost + " that processID [" + processID
+							+ "] has finished.");
+					}
+				}
+			});
+	}
+
 	private String getPackageName() {
 		if(this.getClass().getPackage()==null) {
 			return "";
@@ -367,6 +836,10 @@ public class ProcessManager implements ThreadCompletionListeners {
                 " to other");
 		System.out.println("Synopsis: migrate processID fromHost toHost");
                 System.out.println("");
+                System.out.println("livemigrate - Like migrate, but copy the process state while it keeps running" +
+                " and only suspend it for the last small change");
+		System.out.println("Synopsis: livemigrate processID fromHost toHost");
+                System.out.println("");
 		System.out.println("kill - Kill the desired process from a particular host.");
                 System.out.println("Synopsis: kill processID fromHost");
                 System.out.println("");
@@ -379,6 +852,29 @@ public class ProcessManager implements ThreadCompletionListeners {
                 System.out.println("listhosts - List all hosts in the cluster.");
                 System.out.println("Synopsis - listhosts");
                 System.out.println("");
+                System.out.println("stats - Print the metrics of one host, or of the whole cluster added up.");
+                System.out.println("Synopsis - stats [hostName]");
+                System.out.println("");
+                System.out.println("drain - Move every process of a host to the other hosts, spread by load.");
+                System.out.println("Synopsis - drain hostName");
+                System.out.println("");
+                System.out.println("rate - Hold a process to a number of records (bytes for copies) per second,"
+                + " or let it run at full speed. Use -Dpacing.<processName>=rate to pace new processes.");
+                System.out.println("Synopsis - rate processID host rate|off");
+                System.out.println("");
+                System.out.println("shard - Run a process that reads one file into another as one shard per host,"
+                + " and merge the shard outputs.");
+                System.out.println("Synopsis - shard processName [arg0] [arg1] ...");
+                System.out.println("");
+                System.out.println("jobs - Show the progress of the sharded jobs started on this node.");
+                System.out.println("Synopsis - jobs");
+                System.out.println("");
+                System.out.println("load - Show the load reported by every host and what the balancer would move.");
+                System.out.println("Synopsis - load");
+                System.out.println("");
+                System.out.println("balancer - Turn automatic load balancing on or off, or only print its plans.");
+                System.out.println("Synopsis - balancer on|off|dryrun");
+                System.out.println("");
 		System.out.println("quit - Terminate the ProcessManager");
                 System.out.println("Synopsis: quit");
                 System.out.println("");
@@ -386,24 +882,182 @@ public class ProcessManager implements ThreadCompletionListeners {
 	}
 
 	private void printProcesses() {
-		Iterator<String> hostItr = hostList.iterator();
+		listProcesses(PS_TIMEOUT).print();
+	}
+
+	/**
+	 * printStats: Ask the given host, or every host at the same time, for its
+	 * metrics and print them, added up across the cluster
+	 */
+	private void printStats(String only) {
+		List<Map<String, Double>> snapshots = new ArrayList<Map<String, Double>>();
+		Map<String, CompletableFuture<Object>> outstanding = new LinkedHashMap<String, CompletableFuture<Object>>();
+
+		Iterator<String> hostItr = getHosts().iterator();
 		while(hostItr.hasNext()) {
 			String host = hostItr.next();
-                        sendRequest(new ProcessListRequest(), host);
+			if(only != null && !only.equals(host)) {
+				continue;
+			}
+			if(hostName.equals(host)) {
+				snapshots.add(getStats());
+			} else {
+				outstanding.put(host, connectionPool.callAsync(host, new StatsRequest(), PS_TIMEOUT));
+			}
+		}
+		if(only != null && snapshots.isEmpty() && outstanding.isEmpty()) {
+			outstanding.put(only, connectionPool.callAsync(only, new StatsRequest(), PS_TIMEOUT));
 		}
+
+		long deadline = System.currentTimeMillis() + PS_TIMEOUT;
+		Iterator<Map.Entry<String, CompletableFuture<Object>>> itr = outstanding.entrySet().iterator();
+		while(itr.hasNext()) {
+			Map.Entry<String, CompletableFuture<Object>> entry = itr.next();
+			try {
+				Object obj = entry.getValue().get(Math.max(deadline - System.currentTimeMillis(), 0),
+                                        TimeUnit.MILLISECONDS);
+				if(obj instanceof StatsResponse) {
+					snapshots.add(((StatsResponse) obj).getMetrics());
+				} else {
+					System.out.println(entry.getKey() + ": unexpected response");
+				}
+			} catch (TimeoutException e) {
+				System.out.println(entry.getKey() + ": timed out");
+			} catch (ExecutionException e) {
+				System.out.println(entry.getKey() + ": " + e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		System.out.println("Metrics of " + (only != null ? only : snapshots.size() + " host(s)") + ":");
+		Metrics.print(Metrics.aggregate(snapshots));
 	}
 
-	public int generateProcessID() {
-		processIDCounter++;
-		return processIDCounter;
+	/**
+	 * listProcesses: Ask every host in the cluster for its processes at the same time
+	 * and merge the answers as they come in
+	 * @param timeout: Milliseconds to wait for the slowest host
+	 * @return The merged list, with the hosts that timed out or failed
+	 */
+	public ClusterProcessList listProcesses(long timeout) {
+		ClusterProcessList result = new ClusterProcessList();
+		final LinkedBlockingQueue<String> answered = new LinkedBlockingQueue<String>();
+		Map<String, CompletableFuture<Object>> outstanding = new LinkedHashMap<String, CompletableFuture<Object>>();
+
+		Iterator<String> hostItr = getHosts().iterator();
+		while(hostItr.hasNext()) {
+			final String host = hostItr.next();
+			if(hostName.equals(host)) {
+				result.addHost(host, new ProcessListResponse(0, getAllProcesses()).getList());
+				continue;
+			}
+
+			CompletableFuture<Object> response = connectionPool.callAsync(host, new ProcessListRequest(), timeout);
+			outstanding.put(host, response);
+			response.whenComplete(new BiConsumer<Object, Throwable>() {
+				public void accept(Object obj, Throwable error) {
+					answered.add(host);
+				}
+			});
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		while(!outstanding.isEmpty()) {
+			String host;
+			try {
+				host = answered.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if(host == null) {
+				break;
+			}
+
+			CompletableFuture<Object> response = outstanding.remove(host);
+			try {
+				Object obj = response.join();
+				if(obj instanceof ProcessListResponse) {
+					result.addHost(host, ((ProcessListResponse) obj).getList());
+				} else {
+					result.addFailedHost(host, "unexpected response");
+				}
+			} catch (CompletionException e) {
+				result.addFailedHost(host, e.getCause().getMessage());
+			}
+		}
+
+		// Whoever has not answered by now is reported as timed out
+		Iterator<String> itr = outstanding.keySet().iterator();
+		while(itr.hasNext()) {
+			result.addTimedOutHost(itr.next());
+		}
+		return result;
+	}
+
+	void recordSuspendLatency(double millis) {
+		metrics.recordSuspendLatency(millis);
+	}
+
+	// Average time a process took to reach a safe point when suspended for migration
+	public double getAverageSuspendLatency() {
+		return metrics.getSuspendLatency().getAverage();
+	}
+
+	public double getMaxSuspendLatency() {
+		return metrics.getSuspendLatency().getMax();
 	}
 
-        public void addProcessToQueue(MigratableProcess proc) {
-                processQueue.add(proc);
+        public Metrics getMetrics() {
+                return metrics;
+        }
+
+        // Every metric of this node, see Metrics.snapshot()
+        public Map<String, Double> getStats() {
+                return metrics.snapshot(this, mServer);
+        }
+
+        // Hand a process to the process runtime to be run
+        public void runProcess(MigratableProcess proc) {
+                proc.markStarted();
+                runtime.start(proc);
+        }
+
+        public ProcessRuntime getRuntime() {
+                return runtime;
+        }
+
+        public FileCache getFileCache() {
+                return fileCache;
+        }
+
+        public ProcessTable getProcessTable() {
+                return processTable;
+        }
+
+        public LoadBalancer getLoadBalancer() {
+                return loadBalancer;
+        }
+
+        // Start a process restored from a checkpoint under its old process ID
+        public void resumeProcess(MigratableProcess proc) {
+                processTable.reserve(proc.getProcID());
+                mServer.start_migrated_process(proc);
+        }
+
+        // @return false if another process with the same ID is in the table
+        public boolean addProcessToQueue(MigratableProcess proc) {
+                return processTable.add(proc);
         }
 
         public void removeProcessFromQueue(MigratableProcess proc) {
-                processQueue.remove(proc);
+                processTable.remove(proc);
+        }
+
+        public boolean hasProcess(MigratableProcess proc) {
+                return processTable.contains(proc);
         }
 
         @Override
@@ -414,6 +1068,14 @@ public class ProcessManager implements ThreadCompletionListeners {
                 
                 // remove the process from the queue
                 removeProcessFromQueue(process);
+
+                // do not resume it after a restart
+                if (checkpointService != null)
+                        checkpointService.processRemoved(process);
+
+                // a finished shard of a sharded job
+                if (process.getJobHost() != null && process.isCompleted())
+                        reportShardDone(process);
         }
 
         public int removeHost(String host) {
@@ -426,11 +1088,11 @@ public class ProcessManager implements ThreadCompletionListeners {
                                 we want to delete localhost from the cluster.
                                 Delete all other hosts from the list of nodes
                                  */
-                                hostList.clear();
-                                hostList.add(hostName);
+                                hostList.retainAll(Collections.singleton(hostName));
                                 ret = 0;
                         } else {
                                 hostList.remove(host);
+                                connectionPool.close(host);
                                 ret = 0;
                         }
 
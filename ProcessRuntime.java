@@ -0,0 +1,159 @@
+/**
+ * ProcessRuntime: Runs MigratableProcesses on an executor instead of on
+ * unmanaged threads.
+ * Three kinds of runtime are available:
+ * 1) BOUNDED - a fixed pool of platform threads, extra processes wait in the queue
+ * 2) VIRTUAL - one virtual thread per process, for many mostly I/O-bound processes.
+ *    On JVMs without virtual threads this falls back to one platform thread per process.
+ * 3) WORK_STEALING - a ForkJoin work-stealing pool sized to the available cores
+ */
+package com.company;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProcessRuntime {
+
+        public enum Mode { BOUNDED, VIRTUAL, WORK_STEALING }
+
+        private Mode mode;
+        private ExecutorService executor;
+
+        // Processes that have been submitted but have not started running yet
+        private AtomicInteger queueDepth = new AtomicInteger();
+
+        // Thread each running process is on, so it can be interrupted
+        private Map<MigratableProcess, Thread> running = new ConcurrentHashMap<MigratableProcess, Thread>();
+
+        private CopyOnWriteArrayList<ProcessLifecycleListener> listeners =
+                new CopyOnWriteArrayList<ProcessLifecycleListener>();
+
+        /**
+         * @param mode: Kind of executor to run processes on
+         * @param threads: Pool size for BOUNDED (ignored by the other modes)
+         */
+        public ProcessRuntime(Mode mode, int threads) {
+                this.mode = mode;
+                switch (mode) {
+                case BOUNDED:
+                        executor = Executors.newFixedThreadPool(Math.max(1, threads), processThreadFactory());
+                        break;
+                case WORK_STEALING:
+                        executor = Executors.newWorkStealingPool();
+                        break;
+                default:
+                        executor = newVirtualThreadExecutor();
+                        break;
+                }
+        }
+
+        /**
+         * fromProperties: Build the runtime selected by the processRuntime and
+         * processRuntime.threads system properties. Defaults to VIRTUAL.
+         */
+        public static ProcessRuntime fromProperties() {
+                Mode mode = Mode.VIRTUAL;
+                String name = System.getProperty("processRuntime");
+                if (name != null) {
+                        try {
+                                mode = Mode.valueOf(name.trim().toUpperCase().replace('-', '_'));
+                        } catch (IllegalArgumentException e) {
+                                System.err.println("Unknown process runtime '" + name + "', using " + mode);
+                        }
+                }
+                int threads = Integer.getInteger("processRuntime.threads",
+                        Runtime.getRuntime().availableProcessors());
+                return new ProcessRuntime(mode, threads);
+        }
+
+        // Executors.newVirtualThreadPerTaskExecutor() where the JVM has it
+        private static ExecutorService newVirtualThreadExecutor() {
+                try {
+                        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                        return (ExecutorService) factory.invoke(null);
+                } catch (Exception e) {
+                        return Executors.newCachedThreadPool(processThreadFactory());
+                }
+        }
+
+        private static ThreadFactory processThreadFactory() {
+                final AtomicInteger count = new AtomicInteger();
+                return new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                                return new Thread(r, "MigratableProcess-" + count.incrementAndGet());
+                        }
+                };
+        }
+
+        public Mode getMode() {
+                return mode;
+        }
+
+        public void addListener(ProcessLifecycleListener listener) {
+                listeners.add(listener);
+        }
+
+        public void removeListener(ProcessLifecycleListener listener) {
+                listeners.remove(listener);
+        }
+
+        /**
+         * start: Queue a process to run on this runtime
+         */
+        public void start(final MigratableProcess process) {
+                queueDepth.incrementAndGet();
+                executor.execute(new Runnable() {
+                        public void run() {
+                                queueDepth.decrementAndGet();
+                                running.put(process, Thread.currentThread());
+                                for (ProcessLifecycleListener listener : listeners) {
+                                        listener.processStarted(process);
+                                }
+                                try {
+                                        process.run();
+                                } finally {
+                                        running.remove(process);
+                                        // An interrupt was meant for this process, not the next one on the thread
+                                        Thread.interrupted();
+                                        for (ProcessLifecycleListener listener : listeners) {
+                                                listener.processFinished(process);
+                                        }
+                                }
+                        }
+                });
+        }
+
+        /**
+         * interrupt: Interrupt the thread a process is running on, to wake it
+         * from a blocking sleep or I/O call
+         * @return false if the process is not running
+         */
+        public boolean interrupt(MigratableProcess process) {
+                Thread thread = running.get(process);
+                if (thread == null) {
+                        return false;
+                }
+                thread.interrupt();
+                return true;
+        }
+
+        // Number of processes waiting for a thread
+        public int getQueueDepth() {
+                return queueDepth.get();
+        }
+
+        // Number of processes currently running
+        public int getRunningCount() {
+                return running.size();
+        }
+
+        public void shutdown() {
+                executor.shutdownNow();
+        }
+}
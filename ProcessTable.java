@@ -0,0 +1,189 @@
+/**
+ * ProcessTable: The processes running on this node, by process ID, with
+ * secondary indexes by class name and by state.
+ *
+ * Process IDs are unique across the cluster: the node ID in the top bits and
+ * an atomic per-node sequence in the low SEQUENCE_BITS. A process keeps its ID
+ * when it migrates, so an ID means the same process on every host. The node
+ * ID comes from -Dnode.id, or from a hash of the host name, which two hosts
+ * may share. The sequence starts at the milliseconds since EPOCH when the
+ * table is created, so a restarted node carries on above the IDs of its
+ * previous run unless that run handed out more than one ID a millisecond.
+ *
+ * Lookups never lock. Updates are synchronized so the indexes always agree
+ * with the ID map.
+ */
+package com.company;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ProcessTable {
+
+        public enum State { RUNNING, MIGRATING }
+
+        public static final int SEQUENCE_BITS = 40;
+        private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+        // Node IDs are limited so that every process ID is positive
+        public static final long MAX_NODE_ID = (1L << (63 - SEQUENCE_BITS)) - 1;
+
+        // 2020-01-01T00:00:00Z, the sequence wraps 34 years after it
+        public static final long EPOCH = 1577836800000L;
+
+        private final long nodeId;
+        private final AtomicLong sequence = new AtomicLong((System.currentTimeMillis() - EPOCH) & SEQUENCE_MASK);
+
+        private final ConcurrentHashMap<Long, MigratableProcess> byId =
+                new ConcurrentHashMap<Long, MigratableProcess>();
+        private final ConcurrentHashMap<String, Set<MigratableProcess>> byClass =
+                new ConcurrentHashMap<String, Set<MigratableProcess>>();
+        private final Map<State, Set<MigratableProcess>> byState =
+                new EnumMap<State, Set<MigratableProcess>>(State.class);
+        private final ConcurrentHashMap<MigratableProcess, State> states =
+                new ConcurrentHashMap<MigratableProcess, State>();
+
+        public ProcessTable(long nodeId) {
+                this.nodeId = nodeId & MAX_NODE_ID;
+                for (State state : State.values()) {
+                        byState.put(state, ConcurrentHashMap.<MigratableProcess>newKeySet());
+                }
+        }
+
+        public static ProcessTable fromProperties(String hostName) {
+                Long nodeId = Long.getLong("node.id");
+                if (nodeId == null) {
+                        nodeId = hostName.hashCode() & MAX_NODE_ID;
+                        System.err.println("Warning: node.id is not set, using " + nodeId + " from the host name."
+                                + " Set -Dnode.id to a number unique in the cluster.");
+                }
+                return new ProcessTable(nodeId);
+        }
+
+        // A new process ID, never handed out before by this node
+        public long nextId() {
+                return (nodeId << SEQUENCE_BITS) | (sequence.incrementAndGet() & SEQUENCE_MASK);
+        }
+
+        /**
+         * reserve: Make sure nextId() never returns id, for processes of this node
+         * that come back from a checkpoint taken before a restart
+         */
+        public void reserve(long id) {
+                if (nodeOf(id) != nodeId) {
+                        return;
+                }
+                long seq = id & SEQUENCE_MASK;
+                long current;
+                while ((current = sequence.get()) < seq) {
+                        if (sequence.compareAndSet(current, seq)) {
+                                break;
+                        }
+                }
+        }
+
+        public static long nodeOf(long id) {
+                return id >>> SEQUENCE_BITS;
+        }
+
+        public long getNodeId() {
+                return nodeId;
+        }
+
+        /**
+         * add: Add a running process
+         * @return false if another process with the same ID is in the table
+         */
+        public synchronized boolean add(MigratableProcess process) {
+                MigratableProcess previous = byId.putIfAbsent(process.getProcID(), process);
+                if (previous != null && previous != process) {
+                        return false;
+                }
+                Set<MigratableProcess> sameClass = byClass.get(process.getClass().getSimpleName());
+                if (sameClass == null) {
+                        sameClass = ConcurrentHashMap.newKeySet();
+                        byClass.put(process.getClass().getSimpleName(), sameClass);
+                }
+                sameClass.add(process);
+                setState(process, State.RUNNING);
+                return true;
+        }
+
+        /**
+         * remove: Drop this instance of a process
+         * @return false if it was not in the table
+         */
+        public synchronized boolean remove(MigratableProcess process) {
+                boolean removed = byId.remove(process.getProcID(), process);
+                return unindex(process) || removed;
+        }
+
+        private boolean unindex(MigratableProcess process) {
+                State state = states.remove(process);
+                if (state == null) {
+                        return false;
+                }
+                byState.get(state).remove(process);
+                Set<MigratableProcess> sameClass = byClass.get(process.getClass().getSimpleName());
+                if (sameClass != null) {
+                        sameClass.remove(process);
+                }
+                return true;
+        }
+
+        private void setState(MigratableProcess process, State state) {
+                State previous = states.put(process, state);
+                if (previous != null) {
+                        byState.get(previous).remove(process);
+                }
+                byState.get(state).add(process);
+        }
+
+        /**
+         * setState: Move a process from one state to another
+         * @return false if it is not in the table or not in state from
+         */
+        public synchronized boolean setState(MigratableProcess process, State from, State to) {
+                if (byId.get(process.getProcID()) != process || states.get(process) != from) {
+                        return false;
+                }
+                setState(process, to);
+                return true;
+        }
+
+        // @return null if no process with this ID runs here
+        public MigratableProcess get(long id) {
+                return byId.get(id);
+        }
+
+        public State getState(MigratableProcess process) {
+                return states.get(process);
+        }
+
+        public boolean contains(MigratableProcess process) {
+                return byId.get(process.getProcID()) == process;
+        }
+
+        // Processes of the class with this simple name
+        public Set<MigratableProcess> byClass(String className) {
+                Set<MigratableProcess> sameClass = byClass.get(className);
+                return sameClass == null ? Collections.<MigratableProcess>emptySet()
+                        : Collections.unmodifiableSet(sameClass);
+        }
+
+        public Set<MigratableProcess> byState(State state) {
+                return Collections.unmodifiableSet(byState.get(state));
+        }
+
+        public int size() {
+                return byId.size();
+        }
+
+        public Object[] toArray() {
+                return byId.values().toArray();
+        }
+}
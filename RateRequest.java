@@ -0,0 +1,25 @@
+/**
+ * RateRequest: Change the rate a process is paced at, 0 to let it run at full speed
+ */
+
+package com.company;
+
+public class RateRequest extends Request {
+
+        private long processID;
+        private double rate;
+
+        public RateRequest(long processID, double rate) {
+                this.processID = processID;
+                this.rate = rate;
+        }
+
+        public long getProcessID() {
+                return processID;
+        }
+
+        // Work units per second
+        public double getRate() {
+                return rate;
+        }
+}
@@ -2,139 +2,499 @@
  * Server:
  * Started by the ProcessManager.
  * It Serves multiple requests for adding/removing hosts, ps, migrate and kill
+ *
+ * A single selector thread accepts connections and reads/writes frames without
+ * blocking. Decoded requests are handled by bounded worker pools: one lane for
+ * control requests (ps, kill, addhost, removehost), a separate lane for
+ * incoming migrations, so a large incoming process never delays control
+ * traffic, and a lane for migrate and drain commands, which wait for the
+ * migration lane of the node they send to.
  */
 
 package com.company;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server implements Runnable {
 
+        // Worker pool sizes and how many requests each lane may queue before refusing more
+        private static final int CONTROL_WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+        private static final int CONTROL_QUEUE = 1024;
+        private static final int MIGRATION_WORKERS = 2;
+        private static final int MIGRATION_QUEUE = 64;
+        private static final int COMMAND_WORKERS = 2;
+        private static final int COMMAND_QUEUE = 64;
+
+        // How long a pre-copy session may go without a step before it is dropped
+        private static final long PRECOPY_SESSION_TIMEOUT = Long.getLong("precopy.sessionTimeout", 120000);
+
+        // Per-connection read buffer
+        private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
         private int Port;
-        private ServerSocket serverSocket;
-        private boolean running;
+        private ServerSocketChannel serverChannel;
+        private Selector selector;
+        private volatile boolean running;
         private ProcessManager pm;
 
+        // Worker lanes
+        private ThreadPoolExecutor controlWorkers;
+        private ThreadPoolExecutor migrationWorkers;
+        private ThreadPoolExecutor commandWorkers;
+
+        // State rebuilt so far for each pre-copy migration coming in
+        private ConcurrentHashMap<Long, PrecopySession> precopySessions = new ConcurrentHashMap<Long, PrecopySession>();
+        private ScheduledExecutorService sessionReaper;
+
+        // Connections with responses waiting to be written, picked up by the selector thread
+        private ConcurrentLinkedQueue<ClientState> pendingWrites = new ConcurrentLinkedQueue<ClientState>();
+
         public Server(int port, ProcessManager pm) {
                 this.Port = port;
                 this.pm = pm;
+                this.controlWorkers = newLane("Server-control", CONTROL_WORKERS, CONTROL_QUEUE);
+                this.migrationWorkers = newLane("Server-migration", MIGRATION_WORKERS, MIGRATION_QUEUE);
+                this.commandWorkers = newLane("Server-command", COMMAND_WORKERS, COMMAND_QUEUE);
+                this.sessionReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "Server-precopy-reaper");
+                                t.setDaemon(true);
+                                return t;
+                        }
+                });
+                this.sessionReaper.scheduleWithFixedDelay(new Runnable() {
+                        public void run() {
+                                expirePrecopySessions();
+                        }
+                }, PRECOPY_SESSION_TIMEOUT, PRECOPY_SESSION_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+        }
+
+        private static ThreadPoolExecutor newLane(final String name, int threads, int queueSize) {
+                final AtomicInteger count = new AtomicInteger();
+                return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                                public Thread newThread(Runnable r) {
+                                        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                                        t.setDaemon(true);
+                                        return t;
+                                }
+                        });
         }
 
         public void run() {
+                if (!bind())
+                        return;
                 running = true;
-                bind();
                 while (running)
-                        accept();
+                        select();
         }
 
         public void stop() {
                 if (running) {
                         running = false;
                         try {
-                                serverSocket.close();
+                                selector.close();
+                                serverChannel.close();
                         } catch (IOException e) {
                                 System.err.println("Could not close server socket");
                         }
+                        controlWorkers.shutdown();
+                        migrationWorkers.shutdown();
+                        commandWorkers.shutdown();
+                        sessionReaper.shutdownNow();
                 }
         }
 
-        public void bind() {
+        public boolean bind() {
                 try {
                         // Bind
-                        serverSocket = new ServerSocket(Port);
-                } catch (SocketException e) {
+                        selector = Selector.open();
+                        serverChannel = ServerSocketChannel.open();
+                        serverChannel.socket().setReuseAddress(true);
+                        serverChannel.bind(new InetSocketAddress(Port));
+                        serverChannel.configureBlocking(false);
+                        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                        return true;
+                } catch (IOException e) {
                         System.err.println("Could not create server socket");
-                        System.err.println("Caught SocketException: " + e.getMessage());
-                        System.exit(1);
+                        System.err.println("Caught IOException: " + e.getMessage());
+                        return false;
+                }
+        }
+
+        // One pass of the selector loop
+        private void select()
+        {
+                try {
+                        selector.select();
+
+                        // Start writing responses the workers have queued up
+                        ClientState pending;
+                        while ((pending = pendingWrites.poll()) != null) {
+                                if (pending.key.isValid()) {
+                                        pending.key.interestOps(pending.key.interestOps() | SelectionKey.OP_WRITE);
+                                }
+                        }
+
+                        Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+                        while (itr.hasNext()) {
+                                SelectionKey key = itr.next();
+                                itr.remove();
+
+                                if (!key.isValid())
+                                        continue;
+                                if (key.isAcceptable()) {
+                                        accept();
+                                        continue;
+                                }
+
+                                ClientState client = (ClientState) key.attachment();
+                                try {
+                                        if (key.isReadable())
+                                                client.read();
+                                        if (key.isValid() && key.isWritable())
+                                                client.write();
+                                } catch (IOException e) {
+                                        // Only this connection is affected, the other node will reconnect
+                                        client.close();
+                                }
+                        }
+                } catch (ClosedSelectorException e) {
+                        running = false;
                 } catch (IOException e) {
                         System.err.println("Caught IOException: " + e.getMessage());
-                        System.exit(1);
                 }
         }
 
         public void accept()
         {
-                Socket clientSocket;
-
                 try {
                         // Accept
-                        clientSocket = serverSocket.accept();
-                        // Receive a request over the socket
-                        RequestReceive(clientSocket);
-                } catch (SocketException e) {
-                        System.err.println("Socket accept error");
-                        System.err.println("Caught SocketException: " + e.getMessage());
-                        System.exit(1);
+                        SocketChannel channel = serverChannel.accept();
+                        if (channel == null)
+                                return;
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        key.attach(new ClientState(channel, key));
                 } catch (IOException e) {
+                        System.err.println("Socket accept error");
                         System.err.println("Caught IOException: " + e.getMessage());
-                        System.exit(1);
                 }
         }
 
-        // Receive requests from other nodes
-        public void RequestReceive(Socket clientSocket)
+        // Hand a complete frame body to the lane matching its kind
+        private void dispatch(final ClientState client, final byte[] body)
         {
+                byte kind = Frame.kindOf(body);
+                ThreadPoolExecutor lane = kind == Frame.KIND_MIGRATION ? migrationWorkers
+                        : kind == Frame.KIND_COMMAND ? commandWorkers : controlWorkers;
                 try {
-                        ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-                        // To Send status to the other node
-                        ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
-
-                        Object obj = in.readObject();
-                        if (obj instanceof MigratableProcess) {
-                                MigratableProcess process = null;
-                                process = (MigratableProcess)obj;
-                                //Start the new process from here
-                                System.out.println("Restarting migrated process.");
-                                start_migrated_process(process);
-                        } else if(obj instanceof MigrateRequest){
-                        	MigrateRequest request = (MigrateRequest) obj;
-                        	Response resp = new Response(pm.migrateProcess(request.getProcessID(), request.getHostTo()));
-                        	out.writeObject(resp);
-                        } else if(obj instanceof KillRequest){
-                                KillRequest request = (KillRequest) obj;
-                                Response resp = new Response(pm.killProcess(request.getProcessID()));
-                                out.writeObject(resp);
-                        } else if(obj instanceof AddHostRequest){
-                        	AddHostRequest request = (AddHostRequest) obj;
-                        	Response resp = new Response(pm.addHosts(request.getHostList()));
-                        	out.writeObject(resp);
-                        } else if (obj instanceof RemoveHostRequest) {
-                                RemoveHostRequest request = (RemoveHostRequest) obj;
-                                Response resp = new Response(pm.removeHost(request.getHost()));
-                                out.writeObject(resp);
-                        } else if(obj instanceof ProcessListRequest) {
-                        	ProcessListResponse resp = new ProcessListResponse(0, pm.getAllProcesses());
-                        	out.writeObject(resp);
-                        }
-
-                        // Close the streams and the socket
-                        in.close();
-                        out.close();
-                        clientSocket.close();
-                } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
+                        final long received = System.nanoTime();
+                        lane.execute(new Runnable() {
+                                public void run() {
+                                        RequestReceive(client, body, received);
+                                }
+                        });
+                } catch (RejectedExecutionException e) {
+                        // Lane is full, refuse the request rather than stall the selector
+                        try {
+                                client.send(Frame.encode(Frame.requestIdOf(body), new Response(-1)));
+                        } catch (IOException ex) {
+                                client.close();
+                        }
+                }
+        }
+
+        // Receive a request from another node and queue the response (runs on a worker)
+        private void RequestReceive(ClientState client, byte[] body, long received)
+        {
+                try {
+                        Frame frame = Frame.decode(body, 0, body.length);
+                        Object resp = handleRequest(frame.getPayload());
+                        client.send(Frame.encode(frame.getRequestId(), resp));
+                        pm.getMetrics().recordRequest(requestType(frame.getPayload()), System.nanoTime() - received);
                 } catch (IOException e) {
                         e.printStackTrace();
+                        client.close();
+                } catch (RuntimeException e) {
+                        // Answer anyway so the caller does not wait out its timeout
+                        e.printStackTrace();
+                        try {
+                                client.send(Frame.encode(Frame.requestIdOf(body), new Response(-1)));
+                        } catch (IOException ex) {
+                                client.close();
+                        }
+                }
+        }
+
+        private static String requestType(Object payload)
+        {
+                return payload instanceof MigratableProcess ? "MigratableProcess" : payload.getClass().getSimpleName();
+        }
+
+        public int getControlQueueSize()
+        {
+                return controlWorkers.getQueue().size();
+        }
+
+        public int getMigrationQueueSize()
+        {
+                return migrationWorkers.getQueue().size();
+        }
+
+        public int getCommandQueueSize()
+        {
+                return commandWorkers.getQueue().size();
+        }
+
+        public int getPendingWriteCount()
+        {
+                return pendingWrites.size();
+        }
+
+        // Service a single request and build the response to send back
+        public Object handleRequest(Object obj)
+        {
+                if (obj instanceof MigratableProcess) {
+                        MigratableProcess process = null;
+                        process = (MigratableProcess)obj;
+                        //Start the new process from here
+                        System.out.println("Restarting migrated process.");
+                        return new Response(start_migrated_process(process) ? 0 : -1);
+                } else if(obj instanceof MigrateRequest){
+                	MigrateRequest request = (MigrateRequest) obj;
+                	if (request.isLive())
+                	        return new Response(pm.liveMigrateProcess(request.getProcessID(), request.getHostTo()));
+                	return new Response(pm.migrateProcess(request.getProcessID(), request.getHostTo()));
+                } else if (obj instanceof PrecopyRequest) {
+                        return new Response(handlePrecopy((PrecopyRequest) obj));
+                } else if (obj instanceof ProcessBatch) {
+                        int ret = 0;
+                        for (MigratableProcess process : ((ProcessBatch) obj).getProcesses()) {
+                                if (!start_migrated_process(process)) {
+                                        ret = -1;
+                                }
+                        }
+                        return new Response(ret);
+                } else if (obj instanceof StatsRequest) {
+                        return new StatsResponse(0, pm.getHostName(), pm.getStats());
+                } else if (obj instanceof ShardDoneRequest) {
+                        ShardDoneRequest request = (ShardDoneRequest) obj;
+                        return new Response(pm.shardDone(request.getJobId(), request.getShard(), request.getProcessID(),
+                                request.getHost()));
+                } else if (obj instanceof ShardStatusRequest) {
+                        ShardStatusRequest request = (ShardStatusRequest) obj;
+                        return pm.shardStatus(request.getJobHost(), request.getJobId());
+                } else if (obj instanceof RateRequest) {
+                        RateRequest request = (RateRequest) obj;
+                        return new Response(pm.setRate(request.getProcessID(), request.getRate()));
+                } else if (obj instanceof DrainRequest) {
+                        return new Response(pm.drainHost());
+                } else if (obj instanceof LoadReport) {
+                        pm.getLoadBalancer().receive((LoadReport) obj);
+                        return new Response(0);
+                } else if (obj instanceof FileSyncRequest) {
+                        return pm.getFileCache().handle((FileSyncRequest) obj);
+                } else if(obj instanceof KillRequest){
+                        KillRequest request = (KillRequest) obj;
+                        return new Response(pm.killProcess(request.getProcessID()));
+                } else if(obj instanceof AddHostRequest){
+                	AddHostRequest request = (AddHostRequest) obj;
+                	return new Response(pm.addHosts(request.getHostList()));
+                } else if (obj instanceof RemoveHostRequest) {
+                        RemoveHostRequest request = (RemoveHostRequest) obj;
+                        return new Response(pm.removeHost(request.getHost()));
+                } else if(obj instanceof ProcessListRequest) {
+                	return new ProcessListResponse(0, pm.getAllProcesses());
                 }
+                return new Response(-1);
         }
 
-        public void start_migrated_process(MigratableProcess process)
+        // Apply one step of a pre-copy migration, starting the process on COMMIT
+        private int handlePrecopy(PrecopyRequest request)
         {
-                // Get and set procID
-                process.setProcID(pm.generateProcessID());
+                Long session = request.getSessionId();
+                switch (request.getPhase()) {
+                case PrecopyRequest.START:
+                        precopySessions.put(session, new PrecopySession(request.getDelta().apply(new byte[0])));
+                        return 0;
+                case PrecopyRequest.DELTA:
+                case PrecopyRequest.COMMIT:
+                        PrecopySession entry = precopySessions.get(session);
+                        if (entry == null)
+                                return -1;
+                        byte[] state = request.getDelta().apply(entry.state);
+                        if (request.getPhase() == PrecopyRequest.DELTA) {
+                                precopySessions.put(session, new PrecopySession(state));
+                                return 0;
+                        }
+                        precopySessions.remove(session);
+                        try {
+                                MigratableProcess process = (MigratableProcess) MessageCodec.fromBytes(state);
+                                System.out.println("Restarting live-migrated process.");
+                                return start_migrated_process(process) ? 0 : -1;
+                        } catch (IOException e) {
+                                System.err.println("Could not rebuild live-migrated process: " + e.getMessage());
+                                return -1;
+                        }
+                default:
+                        precopySessions.remove(session);
+                        return 0;
+                }
+        }
+
+        // Drop the sessions of migrations whose source went away without a COMMIT or ABORT
+        private void expirePrecopySessions()
+        {
+                long deadline = System.currentTimeMillis() - PRECOPY_SESSION_TIMEOUT;
+                Iterator<Map.Entry<Long, PrecopySession>> it = precopySessions.entrySet().iterator();
+                while (it.hasNext()) {
+                        if (it.next().getValue().touched < deadline) {
+                                it.remove();
+                                System.out.println("Dropped an expired pre-copy migration.");
+                        }
+                }
+        }
 
+        // State of one pre-copy migration and when it last had a step
+        private static class PrecopySession {
+                final byte[] state;
+                final long touched;
+
+                PrecopySession(byte[] state) {
+                        this.state = state;
+                        this.touched = System.currentTimeMillis();
+                }
+        }
+
+        // @return false if a process with the same procID already runs here
+        public boolean start_migrated_process(MigratableProcess process)
+        {
+                // The process keeps its cluster-unique procID
                 // Add process to this node's queue
-                pm.addProcessToQueue(process);
+                process.markArrived();
+                if (!pm.addProcessToQueue(process)) {
+                        System.out.println("Process " + process.getProcID() + " is already running on this node.");
+                        return false;
+                }
 
                 // Add ourself as the listener
                 process.addListener(pm);
                 
                 // Start the process
-                new Thread(process).start();
+                pm.runProcess(process);
+                return true;
+        }
+
+        /**
+         * ClientState: Read and write state of one connection. Only the selector
+         * thread reads from and writes to the channel; workers queue responses
+         * with send().
+         */
+        private class ClientState {
+                private SocketChannel channel;
+                private SelectionKey key;
+
+                // Bytes read from the channel but not parsed yet, and the body of the frame being read
+                private ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+                private ByteBuffer body;
+
+                // Encoded responses waiting to be written
+                private ConcurrentLinkedQueue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+
+                ClientState(SocketChannel channel, SelectionKey key) {
+                        this.channel = channel;
+                        this.key = key;
+                }
+
+                // Read as much as is available and dispatch every complete frame
+                void read() throws IOException {
+                        int n;
+                        while ((n = channel.read(input)) > 0) {
+                                input.flip();
+                                parse();
+                                input.compact();
+                        }
+                        if (n < 0) {
+                                throw new IOException("Connection closed");
+                        }
+                }
+
+                // Cut the bytes in input into frames
+                private void parse() throws IOException {
+                        while (input.hasRemaining()) {
+                                if (body == null) {
+                                        int start = input.position();
+                                        long length = WireFormat.readVarInt(input.array(),
+                                                input.arrayOffset() + start, input.arrayOffset() + input.limit());
+                                        if (length < 0)
+                                                return; // length prefix not complete yet
+                                        Frame.checkLength(length);
+                                        input.position(start + WireFormat.varIntSize((int) length));
+                                        body = ByteBuffer.allocate((int) length);
+                                }
+
+                                int n = Math.min(input.remaining(), body.remaining());
+                                body.put(input.array(), input.arrayOffset() + input.position(), n);
+                                input.position(input.position() + n);
+                                if (body.hasRemaining())
+                                        return;
+
+                                byte[] frame = body.array();
+                                body = null;
+                                dispatch(this, frame);
+                        }
+                }
+
+                // Write queued responses until done or the socket buffer is full
+                void write() throws IOException {
+                        ByteBuffer buf;
+                        while ((buf = outgoing.peek()) != null) {
+                                channel.write(buf);
+                                if (buf.hasRemaining())
+                                        return;
+                                outgoing.poll();
+                        }
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        // A worker may have queued more after the loop ended
+                        if (!outgoing.isEmpty())
+                                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+
+                // Queue a frame for writing (any thread)
+                void send(byte[] frame) {
+                        outgoing.add(ByteBuffer.wrap(frame));
+                        pendingWrites.add(this);
+                        selector.wakeup();
+                }
+
+                void close() {
+                        key.cancel();
+                        try {
+                                channel.close();
+                        } catch (IOException e) {
+                                // already gone
+                        }
+                }
         }
 }
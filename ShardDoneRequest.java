@@ -0,0 +1,38 @@
+/**
+ * ShardDoneRequest: Tell the node running a ShardedJob that one of its shards has finished
+ */
+
+package com.company;
+
+public class ShardDoneRequest extends Request {
+
+        private long jobId;
+        private int shard;
+        private long processID;
+        private String host;
+
+        public ShardDoneRequest(long jobId, int shard, long processID, String host) {
+                this.jobId = jobId;
+                this.shard = shard;
+                this.processID = processID;
+                this.host = host;
+        }
+
+        public long getJobId() {
+                return jobId;
+        }
+
+        public int getShard() {
+                return shard;
+        }
+
+        // Process that ran the shard, an earlier attempt at it is ignored
+        public long getProcessID() {
+                return processID;
+        }
+
+        // Host the shard finished on
+        public String getHost() {
+                return host;
+        }
+}
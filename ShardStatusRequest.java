@@ -0,0 +1,25 @@
+/**
+ * ShardStatusRequest: Ask a node which shards of a ShardedJob it runs and how
+ * far each got, without sending the processes themselves
+ */
+package com.company;
+
+public class ShardStatusRequest extends Request {
+
+        private String jobHost;
+        private long jobId;
+
+        public ShardStatusRequest(String jobHost, long jobId) {
+                this.jobHost = jobHost;
+                this.jobId = jobId;
+        }
+
+        // Host running the job
+        public String getJobHost() {
+                return jobHost;
+        }
+
+        public long getJobId() {
+                return jobId;
+        }
+}
@@ -0,0 +1,32 @@
+/**
+ * ShardStatusResponse: Response for a ShardStatusRequest. For every shard of
+ * the job on the node: its index, the process running it and the offset that
+ * process has reached in its input.
+ */
+package com.company;
+
+public class ShardStatusResponse extends Response {
+
+        private int[] shards;
+        private long[] processIDs;
+        private long[] offsets;
+
+        public ShardStatusResponse(int errorCode, int[] shards, long[] processIDs, long[] offsets) {
+                super(errorCode);
+                this.shards = shards;
+                this.processIDs = processIDs;
+                this.offsets = offsets;
+        }
+
+        public int[] getShards() {
+                return shards;
+        }
+
+        public long[] getProcessIDs() {
+                return processIDs;
+        }
+
+        public long[] getOffsets() {
+                return offsets;
+        }
+}
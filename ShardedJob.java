@@ -0,0 +1,487 @@
+/**
+ * ShardedJob: Runs one file job (grep, copy, sort...) spread over the cluster.
+ * The input is cut into byte ranges at line boundaries, one per host. Each
+ * range is handled by a shard: a process of the job's type restricted to the
+ * range with setInputRange(), writing to its own output file. The shards are
+ * started on the hosts like migrated processes, and every host reports a
+ * finished shard back here, see ProcessManager.notifyOfThreadCompletion().
+ *
+ * Once all shards are done their outputs are merged into the job's output
+ * file: appended in input order, or k-way merged for a MergeSortProcess.
+ * Shard outputs are read through the shared file system, like the files of
+ * migrated processes.
+ *
+ * While the job runs, the shards' progress is checked every job.checkInterval
+ * milliseconds by asking each host for the offsets its shards have reached.
+ * When a host has no shard left to run and a shard has made less than
+ * job.stragglerRatio of the average progress, that shard is migrated to the
+ * idle host, once at most.
+ *
+ * A shard that no host has reported for job.lostChecks checks in a row was
+ * lost with its host, killed or has crashed. It is run again from the start
+ * of its range, and the job fails once a shard has been run job.maxAttempts
+ * times. A finished shard is only counted for the attempt that is current.
+ */
+package com.company;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ShardedJob implements ThreadCompletionListeners, Runnable {
+
+        // Shards are not made smaller than this
+        private static final long MIN_SHARD_SIZE = Long.getLong("job.minShardSize", 1024 * 1024);
+
+        // How often the progress of the shards is checked, in milliseconds
+        private static final long CHECK_INTERVAL = Long.getLong("job.checkInterval", 2000);
+
+        // A shard below this fraction of the average progress is moved to an idle host
+        private static final double STRAGGLER_RATIO =
+                Double.parseDouble(System.getProperty("job.stragglerRatio", "0.5"));
+
+        // Times one shard may be moved
+        private static final int MAX_MOVES = 1;
+
+        // Checks a shard may go unreported before it counts as lost, and times one shard may be run
+        private static final int LOST_CHECKS = Integer.getInteger("job.lostChecks", 3);
+        private static final int MAX_ATTEMPTS = Integer.getInteger("job.maxAttempts", 3);
+
+        // How long to wait for the hosts to answer when starting, moving or checking shards
+        private static final long REQUEST_TIMEOUT = 30 * 1000;
+        private static final long PS_TIMEOUT = 3 * 1000;
+
+        // Bytes appended at a time when concatenating shard outputs
+        private static final long CHUNK_SIZE = 8 * 1024 * 1024;
+
+        // One range of the input and the process working on it
+        private static class Shard {
+                final int index;
+                final long start;
+                final long end;
+                String output;
+                volatile long procID;
+                volatile String host;
+                volatile boolean done;
+                volatile double progress;
+                int moves;
+                int attempts;
+                int unseen;
+
+                Shard(int index, long start, long end) {
+                        this.index = index;
+                        this.start = start;
+                        this.end = end;
+                }
+        }
+
+        private ProcessManager pm;
+        private ConnectionPool connectionPool;
+        private String hostName;
+        private long id;
+        private String[] command;
+        private String output;
+        private int outputArg;
+        private boolean sorted;
+        private Shard[] shards;
+        private CountDownLatch remaining;
+        private long startTime;
+
+        // Why the job failed, null while it has not
+        private volatile String failure;
+
+        public ShardedJob(ProcessManager pm, ConnectionPool connectionPool, String hostName, long id, String[] command) {
+                this.pm = pm;
+                this.connectionPool = connectionPool;
+                this.hostName = hostName;
+                this.id = id;
+                this.command = command;
+        }
+
+        public long getId() {
+                return id;
+        }
+
+        /**
+         * start: Split the input and start one shard per host
+         * @return false if the command cannot be run as a sharded job
+         */
+        public boolean start() throws Exception {
+                MigratableProcess prototype = pm.instantiate(command, 0);
+                if (prototype == null) {
+                        return false;
+                }
+                if (!prototype.isShardable()) {
+                        System.out.println(command[0] + " cannot be run as shards of a job.");
+                        return false;
+                }
+                TransactionalFileInputStream[] inputs = prototype.getInputFiles();
+                TransactionalFileOutputStream[] outputs = prototype.getOutputFiles();
+                output = outputs[0].getFilePath();
+                outputArg = -1;
+                for (int i = 1; i < command.length; i++) {
+                        if (command[i].equals(output)) {
+                                outputArg = i;
+                        }
+                }
+                if (outputArg < 0) {
+                        System.out.println("Could not find the output file among the arguments of " + command[0] + ".");
+                        return false;
+                }
+                sorted = prototype instanceof MergeSortProcess;
+
+                List<String> hosts = pm.getHosts();
+                long[] starts = TransactionalFileInputStream.splitLines(inputs[0].getFilePath(), hosts.size(),
+                        MIN_SHARD_SIZE);
+                shards = new Shard[starts.length - 1];
+                remaining = new CountDownLatch(shards.length);
+                startTime = System.currentTimeMillis();
+
+                for (int i = 0; i < shards.length; i++) {
+                        shards[i] = new Shard(i, starts[i], starts[i + 1]);
+                        startShard(shards[i], hosts.get(i));
+                }
+                System.out.println("Job " + id + ": started " + shards.length + " shard(s) of " + command[0] + ".");
+
+                Thread t = new Thread(this, "ShardedJob-" + id);
+                t.setDaemon(true);
+                t.start();
+                return true;
+        }
+
+        /**
+         * startShard: Run a new attempt at a shard on host. Every attempt writes
+         * to an output of its own, so an earlier attempt that is still running
+         * cannot mix into it.
+         */
+        private void startShard(Shard shard, String host) throws ReflectiveOperationException {
+                MigratableProcess process;
+                synchronized (this) {
+                        if (shard.done) {
+                                return;
+                        }
+                        String[] shardCommand = command.clone();
+                        shardCommand[outputArg] = output + ".shard" + shard.index
+                                + (shard.attempts > 0 ? "." + shard.attempts : "");
+                        shard.output = shardCommand[outputArg];
+                        shard.attempts++;
+                        shard.unseen = 0;
+                        shard.progress = 0;
+
+                        // An output left over from an earlier job would not be truncated
+                        new File(shard.output).delete();
+                        process = pm.instantiate(shardCommand, pm.getProcessTable().nextId());
+                        process.setInputRange(shard.start, shard.end);
+                        process.setShard(hostName, id, shard.index);
+                        shard.procID = process.getProcID();
+                }
+                launch(shard, process, host);
+        }
+
+        // Start a shard on host, or here if host cannot take it
+        private void launch(Shard shard, MigratableProcess process, String host) {
+                if (!hostName.equals(host)) {
+                        try {
+                                Response resp = (Response) connectionPool.call(host, process, REQUEST_TIMEOUT);
+                                if (resp.getErrorCode() == 0) {
+                                        shard.host = host;
+                                        return;
+                                }
+                        } catch (IOException e) {
+                                // run it here instead
+                        }
+                        System.out.println("Job " + id + ": could not start shard " + shard.index + " on " + host
+                                + ", running it on this node.");
+                }
+                shard.host = hostName;
+                pm.startProcess(process);
+        }
+
+        // A shard running on this node has finished
+        public void notifyOfThreadCompletion(MigratableProcess process) {
+                shardDone(process.getShard(), process.getProcID(), hostName);
+        }
+
+        // Process processID has finished shard index on host
+        public synchronized void shardDone(int index, long processID, String host) {
+                if (index < 0 || index >= shards.length || shards[index].done
+                                || shards[index].procID != processID) {
+                        return;
+                }
+                shards[index].done = true;
+                shards[index].host = host;
+                shards[index].progress = 1;
+                remaining.countDown();
+        }
+
+        public void run() {
+                try {
+                        while (!remaining.await(CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                                check();
+                                if (failure != null) {
+                                        System.out.println("Job " + id + " failed: " + failure);
+                                        abandon();
+                                        return;
+                                }
+                        }
+                        merge();
+                        System.out.println("Job " + id + " finished in " + (System.currentTimeMillis() - startTime)
+                                + " ms, output in " + output + ".");
+                } catch (InterruptedException e) {
+                        System.out.println("Job " + id + " was interrupted.");
+                } catch (IOException e) {
+                        System.out.println("Job " + id + ": could not merge the shard outputs: " + e.getMessage());
+                } finally {
+                        pm.jobFinished(this);
+                }
+        }
+
+        /**
+         * check: Find out where the shards are and how far they got, run the lost
+         * ones again, and move the one furthest behind to a host that has no
+         * shard left to run
+         */
+        private void check() {
+                Map<String, ShardStatusResponse> status = pollShards();
+                Map<String, Integer> running = new LinkedHashMap<String, Integer>();
+                boolean[] seen = new boolean[shards.length];
+                for (Map.Entry<String, ShardStatusResponse> entry : status.entrySet()) {
+                        String host = entry.getKey();
+                        ShardStatusResponse resp = entry.getValue();
+                        running.put(host, 0);
+                        for (int i = 0; i < resp.getShards().length; i++) {
+                                int index = resp.getShards()[i];
+                                if (index < 0 || index >= shards.length || shards[index].done
+                                                || shards[index].procID != resp.getProcessIDs()[i]) {
+                                        continue;
+                                }
+                                Shard shard = shards[index];
+                                seen[index] = true;
+                                shard.host = host;
+                                shard.unseen = 0;
+                                shard.progress = shard.end > shard.start
+                                        ? (double) (resp.getOffsets()[i] - shard.start) / (shard.end - shard.start) : 1;
+                                running.put(host, running.get(host) + 1);
+                        }
+                }
+
+                String idle = null;
+                for (Map.Entry<String, Integer> entry : running.entrySet()) {
+                        if (entry.getValue() == 0) {
+                                idle = entry.getKey();
+                                break;
+                        }
+                }
+
+                for (Shard shard : shards) {
+                        if (!seen[shard.index] && !shard.done && ++shard.unseen >= LOST_CHECKS) {
+                                rerun(shard, idle != null ? idle : hostName);
+                                if (failure != null) {
+                                        return;
+                                }
+                        }
+                }
+                if (idle == null) {
+                        return;
+                }
+
+                double[] progress = new double[shards.length];
+                boolean[] movable = new boolean[shards.length];
+                for (int i = 0; i < shards.length; i++) {
+                        progress[i] = shards[i].progress;
+                        movable[i] = seen[i] && shards[i].moves < MAX_MOVES;
+                }
+                int straggler = pickStraggler(progress, movable, STRAGGLER_RATIO);
+                if (straggler >= 0) {
+                        move(shards[straggler], idle);
+                }
+        }
+
+        // The status of this job's shards on every host that answered in time
+        private Map<String, ShardStatusResponse> pollShards() {
+                Map<String, CompletableFuture<Object>> calls = new LinkedHashMap<String, CompletableFuture<Object>>();
+                for (String host : pm.getHosts()) {
+                        if (hostName.equals(host)) {
+                                calls.put(host, CompletableFuture.<Object>completedFuture(pm.shardStatus(hostName, id)));
+                        } else {
+                                calls.put(host, connectionPool.callAsync(host, new ShardStatusRequest(hostName, id),
+                                        PS_TIMEOUT));
+                        }
+                }
+
+                Map<String, ShardStatusResponse> status = new LinkedHashMap<String, ShardStatusResponse>();
+                for (Map.Entry<String, CompletableFuture<Object>> call : calls.entrySet()) {
+                        try {
+                                Object resp = call.getValue().join();
+                                if (resp instanceof ShardStatusResponse) {
+                                        status.put(call.getKey(), (ShardStatusResponse) resp);
+                                }
+                        } catch (CompletionException e) {
+                                // a host that does not answer reports none of its shards
+                        }
+                }
+                return status;
+        }
+
+        // Run a lost shard again on host, or fail the job if it has been run often enough
+        private void rerun(Shard shard, String host) {
+                if (shard.attempts >= MAX_ATTEMPTS) {
+                        failure = "shard " + shard.index + " was lost in all " + shard.attempts + " attempt(s).";
+                        return;
+                }
+                System.out.println("Job " + id + ": shard " + shard.index + " was lost on " + shard.host
+                        + ", running it again on " + host + ".");
+                try {
+                        startShard(shard, host);
+                } catch (ReflectiveOperationException e) {
+                        failure = "could not run shard " + shard.index + " again: " + e;
+                }
+        }
+
+        // Stop the shards of a failed job that still run and remove their outputs
+        private void abandon() {
+                for (Shard shard : shards) {
+                        if (!shard.done && shard.host != null) {
+                                if (hostName.equals(shard.host)) {
+                                        if (pm.getProcessTable().get(shard.procID) != null) {
+                                                pm.killProcess(shard.procID);
+                                        }
+                                } else {
+                                        connectionPool.callAsync(shard.host, new KillRequest(shard.procID));
+                                }
+                        }
+                        new File(shard.output).delete();
+                }
+        }
+
+        /**
+         * pickStraggler: The movable shard with the least progress, if that is less
+         * than ratio times the average progress of all shards
+         * @return its index, or -1
+         */
+        static int pickStraggler(double[] progress, boolean[] movable, double ratio) {
+                double average = 0;
+                int slowest = -1;
+                for (int i = 0; i < progress.length; i++) {
+                        average += progress[i] / progress.length;
+                        if (movable[i] && (slowest < 0 || progress[i] < progress[slowest])) {
+                                slowest = i;
+                        }
+                }
+                return slowest >= 0 && progress[slowest] < ratio * average ? slowest : -1;
+        }
+
+        private void move(Shard shard, String target) {
+                shard.moves++;
+                String from = shard.host;
+                System.out.println("Job " + id + ": shard " + shard.index + " is at "
+                        + String.format("%.0f%%", shard.progress * 100) + ", moving it from " + from
+                        + " to " + target + ".");
+                if (hostName.equals(from)) {
+                        pm.migrateProcess(shard.procID, target);
+                        return;
+                }
+                try {
+                        Response resp = (Response) connectionPool.call(from,
+                                new MigrateRequest(shard.procID, target, false), REQUEST_TIMEOUT);
+                        if (resp.getErrorCode() != 0) {
+                                System.out.println("Job " + id + ": could not move shard " + shard.index + ".");
+                        }
+                } catch (IOException e) {
+                        System.out.println("Job " + id + ": could not move shard " + shard.index + ": "
+                                + e.getMessage());
+                }
+        }
+
+        // Combine the shard outputs into the output file and remove them
+        private void merge() throws IOException {
+                new File(output).delete();
+                TransactionalFileOutputStream out = new TransactionalFileOutputStream(output);
+                if (sorted) {
+                        mergeSorted(out);
+                } else {
+                        concat(out);
+                }
+                out.closeFile();
+                // A job without any output still leaves an (empty) output file
+                new File(output).createNewFile();
+                for (Shard shard : shards) {
+                        new File(shard.output).delete();
+                }
+        }
+
+        private void concat(TransactionalFileOutputStream out) throws IOException {
+                for (Shard shard : shards) {
+                        if (!new File(shard.output).exists()) {
+                                continue;
+                        }
+                        TransactionalFileInputStream in = new TransactionalFileInputStream(shard.output);
+                        try {
+                                while (in.transferTo(out, CHUNK_SIZE) >= 0) {
+                                }
+                        } finally {
+                                in.closeFile();
+                        }
+                }
+        }
+
+        // Head line of a sorted shard output in the k-way merge
+        private static class Head implements Comparable<Head> {
+                String line;
+                final TransactionalFileInputStream in;
+
+                Head(TransactionalFileInputStream in) {
+                        this.in = in;
+                }
+
+                public int compareTo(Head other) {
+                        return line.compareTo(other.line);
+                }
+        }
+
+        private void mergeSorted(TransactionalFileOutputStream out) throws IOException {
+                PriorityQueue<Head> heap = new PriorityQueue<Head>(Math.max(shards.length, 1));
+                for (Shard shard : shards) {
+                        if (!new File(shard.output).exists()) {
+                                continue;
+                        }
+                        Head head = new Head(new TransactionalFileInputStream(shard.output));
+                        head.line = head.in.readLine();
+                        if (head.line != null) {
+                                heap.add(head);
+                        } else {
+                                head.in.closeFile();
+                        }
+                }
+
+                Head head;
+                while ((head = heap.poll()) != null) {
+                        out.writeString(head.line);
+                        head.line = head.in.readLine();
+                        if (head.line != null) {
+                                heap.add(head);
+                        } else {
+                                head.in.closeFile();
+                        }
+                }
+        }
+
+        // Progress of the job and where its shards run
+        public void print() {
+                int done = shards.length - (int) remaining.getCount();
+                System.out.println("Job " + id + " (" + String.join(" ", command) + "): " + done + " of "
+                        + shards.length + " shard(s) done");
+                for (Shard shard : shards) {
+                        System.out.println("  shard " + shard.index + " [" + shard.start + ", " + shard.end + ") on "
+                                + shard.host + ": " + (shard.done ? "done"
+                                        : String.format("%.0f%%", shard.progress * 100)));
+                }
+        }
+}
@@ -10,10 +10,13 @@
 
 package com.company;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.CharBuffer;
 import java.util.Arrays;
 
-public class SortFileProcess extends MigratableProcess {
+public class SortFileProcess extends BatchProcess {
 
         private TransactionalFileInputStream inFile;
         private TransactionalFileOutputStream outFile;
@@ -30,49 +33,49 @@ public class SortFileProcess extends MigratableProcess {
                 outFile = new TransactionalFileOutputStream(args[1]);
         }
 
+        // One record per line
         @Override
-        public void run()
+        protected int processBatch(int maxRecords) throws IOException
         {
-                try {
-                        while (!suspend_flag && !should_quit) {
-                                String line = inFile.readLine();
+                for (int n = 0; n < maxRecords; n++) {
+                        CharBuffer line = inFile.readLineView();
 
-                                if (line == null)
-                                        break;
+                        if (line == null)
+                                return n > 0 ? n : -1;
 
-                                // Store the line in a character array
-                                char[] char_arr = line.toCharArray();
+                        // Sort the characters in place in the line buffer
+                        Arrays.sort(line.array(), line.arrayOffset() + line.position(),
+                                line.arrayOffset() + line.limit());
 
-                                // Sort the byte array
-                                Arrays.sort(char_arr);
-
-                                // Store the sorted array back in a string
-                                line = new String(char_arr);
+                        // Write the line to the output file
+                        outFile.writeString(line);
+                }
+                return maxRecords;
+        }
 
-                                // Write the string to the output file
-                                outFile.writeString(line);
+        @Override
+        protected TransactionalFileInputStream[] getInputFiles()
+        {
+                return new TransactionalFileInputStream[] { inFile };
+        }
 
-                                // Make the process run longer
-                                try {
-                                        Thread.sleep(500);
-                                } catch (InterruptedException e) {
-                                        // ignore it
-                                }
-                        }
+        @Override
+        protected TransactionalFileOutputStream[] getOutputFiles()
+        {
+                return new TransactionalFileOutputStream[] { outFile };
+        }
 
-                        inFile.closeFile();
-                        outFile.closeFile();
-                        suspend_flag = false;
-                } catch (IOException e) {
-                        System.out.println("SortProcess Error: " + e);
-                } finally {
-                        signalListeners();
-                }
+        @Override
+        protected void writeState(DataOutput out) throws IOException
+        {
+                inFile.writeState(out);
+                outFile.writeState(out);
         }
 
-        public void migrationPreProcess()
+        @Override
+        protected void readState(DataInput in) throws IOException
         {
-                inFile.setFlag(true);
-                outFile.setFlag(true);
+                inFile.readState(in);
+                outFile.readState(in);
         }
-}
\ No newline at end of file
+}
@@ -0,0 +1,99 @@
+/**
+ * StateDelta: The difference between two encodings of a process' state, as the
+ * list of fixed size blocks that changed plus the new total length.
+ * A delta against an empty state is simply the whole state.
+ */
+package com.company;
+
+import java.io.Serializable;
+
+public class StateDelta implements Serializable {
+
+        public static final int BLOCK_SIZE = 4096;
+
+        private int length;
+        private int[] blocks;
+        private byte[] data;
+
+        public StateDelta(int length, int[] blocks, byte[] data) {
+                this.length = length;
+                this.blocks = blocks;
+                this.data = data;
+        }
+
+        /**
+         * compute: Blocks of current that differ from previous
+         */
+        public static StateDelta compute(byte[] previous, byte[] current) {
+                int count = (current.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+                int[] changed = new int[count];
+                int changedCount = 0;
+                int dataSize = 0;
+
+                for (int block = 0; block < count; block++) {
+                        int start = block * BLOCK_SIZE;
+                        int end = Math.min(start + BLOCK_SIZE, current.length);
+                        if (!sameRange(previous, current, start, end)) {
+                                changed[changedCount++] = block;
+                                dataSize += end - start;
+                        }
+                }
+
+                int[] blocks = new int[changedCount];
+                byte[] data = new byte[dataSize];
+                int pos = 0;
+                for (int i = 0; i < changedCount; i++) {
+                        int start = changed[i] * BLOCK_SIZE;
+                        int len = Math.min(BLOCK_SIZE, current.length - start);
+                        blocks[i] = changed[i];
+                        System.arraycopy(current, start, data, pos, len);
+                        pos += len;
+                }
+                return new StateDelta(current.length, blocks, data);
+        }
+
+        private static boolean sameRange(byte[] previous, byte[] current, int start, int end) {
+                if (end > previous.length) {
+                        return false;
+                }
+                for (int i = start; i < end; i++) {
+                        if (previous[i] != current[i]) {
+                                return false;
+                        }
+                }
+                return true;
+        }
+
+        /**
+         * apply: Rebuild the current state from the previous one and this delta
+         */
+        public byte[] apply(byte[] previous) {
+                byte[] current = new byte[length];
+                System.arraycopy(previous, 0, current, 0, Math.min(previous.length, length));
+                int pos = 0;
+                for (int i = 0; i < blocks.length; i++) {
+                        int start = blocks[i] * BLOCK_SIZE;
+                        int len = Math.min(BLOCK_SIZE, length - start);
+                        System.arraycopy(data, pos, current, start, len);
+                        pos += len;
+                }
+                return current;
+        }
+
+        public int getLength() {
+                return length;
+        }
+
+        public int[] getBlocks() {
+                return blocks;
+        }
+
+        public byte[] getData() {
+                return data;
+        }
+
+        // Bytes of state this delta carries
+        public int size() {
+                return data.length;
+        }
+}
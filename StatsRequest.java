@@ -0,0 +1,8 @@
+/**
+ * StatsRequest: Ask a node for a snapshot of its Metrics
+ */
+
+package com.company;
+
+public class StatsRequest extends Request {
+}
@@ -0,0 +1,26 @@
+/**
+ * StatsResponse: Response for a 'stats' request, the Metrics snapshot of one node
+ */
+package com.company;
+
+import java.util.Map;
+
+public class StatsResponse extends Response {
+
+        private String host;
+        private Map<String, Double> metrics;
+
+        public StatsResponse(int errorCode, String host, Map<String, Double> metrics) {
+                super(errorCode);
+                this.host = host;
+                this.metrics = metrics;
+        }
+
+        public String getHost() {
+                return host;
+        }
+
+        public Map<String, Double> getMetrics() {
+                return metrics;
+        }
+}
@@ -5,18 +5,50 @@
  * We implement the read() and readLine() functions. We use the
  * RandomAccessFile object which helps seeking to a particular file offset
  * and getting the current file offset.
+ *
+ * In buffered mode the file is read in large blocks into a transient buffer.
+ * fileOffset always points at the next byte handed out to the caller (not at
+ * the end of the block), so a migrated stream resumes on the exact byte.
+ *
+ * In memory-mapped mode the file is mapped in windows of MAP_WINDOW_SIZE bytes
+ * starting at fileOffset. The mapping is transient: it is rebuilt lazily after
+ * deserialization and released on closeFile().
+ *
+ * Lines are split on '\n', '\r' and "\r\n" at the byte level and then decoded
+ * with the stream's charset (UTF-8 unless set otherwise), so the charset has
+ * to be ASCII compatible. fileOffset stays an exact byte offset.
+ *
+ * setRange() restricts the stream to a byte range of the file, which then reads
+ * as if the file ended at the end of the range.
  */
 package com.company;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
 
 public class TransactionalFileInputStream extends InputStream implements Serializable {
 
+        // Default size of the read buffer
+        public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+        // Size of one mapped window in memory-mapped mode
+        public static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
         // Input File path
         private String inputFile;
 
@@ -28,61 +60,501 @@ public class TransactionalFileInputStream extends InputStream implements Seriali
 
         // Migrated flag - to check if this object has been migrated
         private boolean migrated;
-	
+
+        // Reads stop here as if the file ended, see setRange()
+        private long limit = Long.MAX_VALUE;
+
+        // Size of the read buffer, 0 means every read goes to the file
+        private int bufferSize;
+
+        // Read buffer and the window of unconsumed bytes in it
+        private transient byte[] buffer;
+        private transient int bufPos;
+        private transient int bufLen;
+
+        // Read through a memory mapping instead of the read buffer
+        private boolean memoryMapped;
+
+        // Current mapped window. Its position is always fileOffset - window start.
+        private transient MappedByteBuffer map;
+
+        // Charset used to decode lines. Stored by name since Charset is not serializable.
+        private String charsetName = "UTF-8";
+
+        // Decoder and reusable line buffers for readLineView()
+        private transient CharsetDecoder decoder;
+        private transient byte[] lineBytes;
+        private transient int lineLength;
+        private transient ByteBuffer lineByteBuffer;
+        private transient CharBuffer lineChars;
+
+        // Metrics for this node: offset when the stream was first opened here, and lines read since.
+        // Written by the reading thread only, so other threads may see slightly stale values.
+        private transient boolean counting;
+        private transient long startOffset;
+        private transient long linesRead;
+
 	public TransactionalFileInputStream(String inFile) {
+                this(inFile, DEFAULT_BUFFER_SIZE);
+	}
+
+	public TransactionalFileInputStream(String inFile, boolean memoryMapped) {
+                this(inFile, DEFAULT_BUFFER_SIZE);
+                this.memoryMapped = memoryMapped;
+	}
+
+	public TransactionalFileInputStream(String inFile, int bufferSize) {
                 this.inputFile = inFile;
                 this.fileOffset = 0;
                 this.migrated = false;
+                this.bufferSize = Math.max(bufferSize, 0);
 	}
-	
+
 	public void setFlag(boolean flag) {
 		migrated = flag;
 	}
 
-	@Override
-	public int read() throws IOException {
-                int byteRead = -1;
+        public long getFileOffset() {
+                return fileOffset;
+        }
+
+        public String getFilePath() {
+                return inputFile;
+        }
+
+        // Bytes read on this node
+        public long getBytesRead() {
+                return counting ? fileOffset - startOffset : 0;
+        }
 
+        // Lines read on this node through readLine() or readLineView()
+        public long getLinesRead() {
+                return linesRead;
+        }
+
+        // Read from another copy of the file, from the same fileOffset on
+        public void setFilePath(String path) {
+                this.inputFile = path;
+                this.migrated = true;
+        }
+
+        // Continue reading at offset, e.g. to go back to the last position a process committed
+        public void seek(long offset) {
+                this.fileOffset = offset;
+                this.migrated = true;
+        }
+
+        // Read only the bytes in [start, end) of the file
+        public void setRange(long start, long end) {
+                seek(start);
+                this.limit = end;
+        }
+
+        public long getLimit() {
+                return limit;
+        }
+
+        /**
+         * splitLines: Cut a file into at most count byte ranges of about the same
+         * size and no smaller than minSize. Every range starts right after a '\n'
+         * (which also ends "\r\n" lines).
+         * @return The offsets where the ranges start, followed by the file size
+         */
+        public static long[] splitLines(String path, int count, long minSize) throws IOException {
+                RandomAccessFile file = new RandomAccessFile(path, "r");
                 try {
-                        if (migrated || raHandler == null) {
+                        long size = file.length();
+                        count = (int) Math.max(1, Math.min(count, size / Math.max(minSize, 1)));
+                        long[] starts = new long[count + 1];
+                        starts[count] = size;
+
+                        byte[] buf = new byte[4096];
+                        for (int k = 1; k < count; k++) {
+                                long pos = Math.max(size * k / count, starts[k - 1]);
+                                file.seek(pos);
+                                starts[k] = size;
+                                int n;
+                                search:
+                                while ((n = file.read(buf)) > 0) {
+                                        for (int j = 0; j < n; j++) {
+                                                if (buf[j] == '\n') {
+                                                        starts[k] = pos + j + 1;
+                                                        break search;
+                                                }
+                                        }
+                                        pos += n;
+                                }
+                        }
+                        return starts;
+                } finally {
+                        file.close();
+                }
+        }
+
+        // Compact form of this stream's state for MigratableProcess.writeState()
+        public void writeState(DataOutput out) throws IOException {
+                WireFormat.writeString(out, inputFile);
+                WireFormat.writeVarLong(out, fileOffset);
+                WireFormat.writeVarInt(out, bufferSize);
+                out.writeBoolean(memoryMapped);
+                WireFormat.writeString(out, charsetName);
+                out.writeBoolean(migrated);
+                WireFormat.writeSignedVarLong(out, limit == Long.MAX_VALUE ? -1 : limit);
+        }
+
+        public void readState(DataInput in) throws IOException {
+                inputFile = WireFormat.readString(in);
+                fileOffset = WireFormat.readVarLong(in);
+                bufferSize = WireFormat.readVarInt(in);
+                memoryMapped = in.readBoolean();
+                charsetName = WireFormat.readString(in);
+                migrated = in.readBoolean();
+                limit = WireFormat.readSignedVarLong(in);
+                if (limit < 0) {
+                        limit = Long.MAX_VALUE;
+                }
+                decoder = null;
+        }
+
+        // Set the charset used by readLine() and readLineView()
+        public void setCharset(Charset charset) {
+                this.charsetName = charset.name();
+                this.decoder = null;
+        }
+
+        /**
+         * open: (Re)open the file at fileOffset if this is the first access or the
+         * stream has been migrated. Any buffered bytes are dropped since they
+         * belong to the old handle.
+         * @return false if the input file could not be found
+         */
+        private boolean open() throws IOException {
+                if (migrated || raHandler == null) {
+                        try {
+                                if (raHandler != null) {
+                                        raHandler.close();
+                                }
                                 raHandler = new RandomAccessFile(inputFile, "r");
                                 raHandler.seek(fileOffset);
                                 migrated = false;
+                                if (!counting) {
+                                        counting = true;
+                                        startOffset = fileOffset;
+                                }
+                                bufPos = 0;
+                                bufLen = 0;
+                                unmap();
+                        } catch (FileNotFoundException e) {
+                                System.err.println("Error: Input file '" + inputFile
+                                        + "' could not be found.");
+                                return false;
+                        }
+                }
+                return true;
+        }
+
+        // Refill the buffer from the file. Returns false at end of file.
+        private boolean fill() throws IOException {
+                if (buffer == null) {
+                        buffer = new byte[bufferSize];
+                }
+                bufPos = 0;
+                bufLen = raHandler.read(buffer, 0, buffer.length);
+                if (bufLen <= 0) {
+                        bufLen = 0;
+                        return false;
+                }
+                LoadMonitor.recordIo(bufLen);
+                return true;
+        }
+
+        // Map the window starting at fileOffset once the current one is used up.
+        // Returns false at end of file.
+        private boolean mapWindow() throws IOException {
+                if (map != null && map.hasRemaining()) {
+                        return true;
+                }
+                FileChannel channel = raHandler.getChannel();
+                long size = channel.size();
+                if (fileOffset >= size) {
+                        return false;
+                }
+                unmap();
+                map = channel.map(FileChannel.MapMode.READ_ONLY, fileOffset,
+                        Math.min(MAP_WINDOW_SIZE, size - fileOffset));
+                LoadMonitor.recordIo(map.remaining());
+                return true;
+        }
+
+        // Release the current mapped window without waiting for the GC
+        private void unmap() {
+                if (map == null) {
+                        return;
+                }
+                MappedByteBuffer old = map;
+                map = null;
+                try {
+                        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                        theUnsafe.setAccessible(true);
+                        Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", java.nio.ByteBuffer.class);
+                        invokeCleaner.invoke(theUnsafe.get(null), old);
+                } catch (Exception e) {
+                        // Not available on this JVM, the mapping goes away with the buffer
+                }
+        }
+
+        // Next byte without the open check, -1 at end of file
+        private int nextByte() throws IOException {
+                if (fileOffset >= limit) {
+                        return -1;
+                }
+                if (memoryMapped) {
+                        if (!mapWindow()) {
+                                return -1;
+                        }
+                        fileOffset++;
+                        return map.get() & 0xff;
+                }
+                if (bufferSize == 0) {
+                        int b = raHandler.read();
+                        if (b != -1) {
+                                fileOffset++;
+                        }
+                        return b;
+                }
+                if (bufPos >= bufLen && !fill()) {
+                        return -1;
+                }
+                fileOffset++;
+                return buffer[bufPos++] & 0xff;
+        }
+
+        // Peek at the next byte without consuming it, -1 at end of file
+        private int peekByte() throws IOException {
+                if (fileOffset >= limit) {
+                        return -1;
+                }
+                if (memoryMapped) {
+                        if (!mapWindow()) {
+                                return -1;
                         }
+                        return map.get(map.position()) & 0xff;
+                }
+                if (bufferSize == 0) {
+                        int b = raHandler.read();
+                        if (b != -1) {
+                                raHandler.seek(fileOffset);
+                        }
+                        return b;
+                }
+                if (bufPos >= bufLen && !fill()) {
+                        return -1;
+                }
+                return buffer[bufPos] & 0xff;
+        }
 
-                        byteRead = raHandler.read();
-                        fileOffset = raHandler.getFilePointer();
-                } catch (FileNotFoundException e) {
-                        System.err.println("Error: Input file '" + inputFile
-                                + "' could not be found.");
+	@Override
+	public int read() throws IOException {
+                if (!open()) {
+                        return -1;
                 }
-		
-		return byteRead;
+		return nextByte();
 	}
-	
-	//Character encoding is a concern..
-	public String readLine() throws IOException {            
-		String line = null;
-		
-		try {
-			if(migrated || raHandler == null) {
-				raHandler = new RandomAccessFile(inputFile, "r");
-				raHandler.seek(fileOffset);
-				migrated = false;
-			}
-			
-			line = raHandler.readLine();
-			fileOffset = raHandler.getFilePointer();
-			
-		} catch (FileNotFoundException e) {
-                        System.err.println("Error: Input file " +inputFile+ " could not be found.");
-		}
-		
-		return line;
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+                if (off < 0 || len < 0 || len > b.length - off) {
+                        throw new IndexOutOfBoundsException();
+                }
+                if (len == 0) {
+                        return 0;
+                }
+                if (fileOffset >= limit) {
+                        return -1;
+                }
+                len = (int) Math.min(len, limit - fileOffset);
+                if (!open()) {
+                        return -1;
+                }
+
+                int n;
+                if (memoryMapped) {
+                        if (!mapWindow()) {
+                                return -1;
+                        }
+                        n = Math.min(len, map.remaining());
+                        map.get(b, off, n);
+                } else if (bufferSize == 0 || (bufPos >= bufLen && len >= bufferSize)) {
+                        // Nothing buffered and the caller wants at least a block: read straight into b
+                        n = raHandler.read(b, off, len);
+                        LoadMonitor.recordIo(n);
+                } else {
+                        if (bufPos >= bufLen && !fill()) {
+                                return -1;
+                        }
+                        n = Math.min(len, bufLen - bufPos);
+                        System.arraycopy(buffer, bufPos, b, off, n);
+                        bufPos += n;
+                }
+
+                if (n > 0) {
+                        fileOffset += n;
+                }
+                return n;
+        }
+
+        /**
+         * transferTo: Copy up to count bytes from the current offset into out.
+         * Buffered bytes are handed over first, after that the data is moved
+         * with FileChannel.transferTo() so it never passes through the heap.
+         * Both streams have their offsets advanced by the number of bytes copied.
+         * @return number of bytes copied, or -1 at end of file
+         */
+        public long transferTo(TransactionalFileOutputStream out, long count) throws IOException {
+                if (fileOffset >= limit) {
+                        return -1;
+                }
+                count = Math.min(count, limit - fileOffset);
+                if (!open()) {
+                        return -1;
+                }
+
+                if (bufPos < bufLen) {
+                        int n = (int) Math.min(count, bufLen - bufPos);
+                        out.write(buffer, bufPos, n);
+                        bufPos += n;
+                        fileOffset += n;
+                        return n;
+                }
+
+                FileChannel channel = raHandler.getChannel();
+                if (fileOffset >= channel.size()) {
+                        return -1;
+                }
+
+                long n = out.transferFrom(channel, fileOffset, count);
+                if (n > 0) {
+                        LoadMonitor.recordIo(n);
+                        fileOffset += n;
+                        // transferTo() does not move the channel position, keep the handle in step
+                        raHandler.seek(fileOffset);
+                        // and the mapped window no longer starts where we are
+                        unmap();
+                }
+                return n;
+        }
+
+	public String readLine() throws IOException {
+                CharSequence line = readLineView();
+		return line == null ? null : line.toString();
 	}
 
+        /**
+         * readLineView: Read the next line without allocating a new String.
+         * The returned buffer is reused and is only valid until the next read
+         * from this stream.
+         * @return the decoded line without its terminator, or null at end of file
+         */
+        public CharBuffer readLineView() throws IOException {
+                if (!open()) {
+                        return null;
+                }
+
+                lineLength = 0;
+                int c;
+                while (true) {
+                        if (!memoryMapped && bufferSize > 0) {
+                                // Copy everything up to the next terminator straight out of the buffer
+                                if (bufPos >= bufLen && !fill()) {
+                                        c = -1;
+                                        break;
+                                }
+                                // Stop at the end of the range like at the end of the file
+                                long left = limit - fileOffset;
+                                int stop = left < bufLen - bufPos ? bufPos + (int) left : bufLen;
+                                int end = bufPos;
+                                while (end < stop && buffer[end] != '\n' && buffer[end] != '\r') {
+                                        end++;
+                                }
+                                appendLineBytes(buffer, bufPos, end - bufPos);
+                                fileOffset += end - bufPos;
+                                bufPos = end;
+                                if (end == bufLen) {
+                                        continue;
+                                }
+                                c = nextByte();
+                                break;
+                        }
+
+                        c = nextByte();
+                        if (c == -1 || c == '\n' || c == '\r') {
+                                break;
+                        }
+                        appendLineByte(c);
+                }
+
+                if (c == '\r' && peekByte() == '\n') {
+                        nextByte();
+                }
+                if (c == -1 && lineLength == 0) {
+                        return null;
+                }
+                linesRead++;
+                return decodeLine();
+        }
+
+        private void ensureLineCapacity(int extra) {
+                if (lineBytes == null) {
+                        lineBytes = new byte[Math.max(256, extra)];
+                } else if (lineLength + extra > lineBytes.length) {
+                        byte[] grown = new byte[Math.max(lineBytes.length * 2, lineLength + extra)];
+                        System.arraycopy(lineBytes, 0, grown, 0, lineLength);
+                        lineBytes = grown;
+                } else {
+                        return;
+                }
+                lineByteBuffer = ByteBuffer.wrap(lineBytes);
+        }
+
+        private void appendLineBytes(byte[] b, int off, int len) {
+                ensureLineCapacity(len);
+                System.arraycopy(b, off, lineBytes, lineLength, len);
+                lineLength += len;
+        }
+
+        private void appendLineByte(int b) {
+                ensureLineCapacity(1);
+                lineBytes[lineLength++] = (byte) b;
+        }
+
+        // Decode lineBytes[0, lineLength) into the reusable lineChars buffer
+        private CharBuffer decodeLine() {
+                if (decoder == null) {
+                        decoder = Charset.forName(charsetName).newDecoder()
+                                .onMalformedInput(CodingErrorAction.REPLACE)
+                                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                }
+                ensureLineCapacity(0);
+
+                int maxChars = (int) Math.ceil(lineLength * (double) decoder.maxCharsPerByte());
+                if (lineChars == null || lineChars.capacity() < maxChars) {
+                        lineChars = CharBuffer.allocate(Math.max(256, maxChars));
+                }
+
+                lineByteBuffer.clear();
+                lineByteBuffer.limit(lineLength);
+                lineChars.clear();
+                decoder.reset();
+                decoder.decode(lineByteBuffer, lineChars, true);
+                decoder.flush(lineChars);
+                lineChars.flip();
+                return lineChars;
+        }
+
 	public void closeFile() {
 		try {
+                        unmap();
 			if(raHandler!=null) {
 				raHandler.close();
 			}
@@ -5,13 +5,31 @@
  * We implement the write() and writeString() functions. We use the
  * RandomAccessFile object which helps seeking to a particular file offset
  * and getting the current file offset.
+ *
+ * Writes are collected in a transient buffer and written to the file in one go
+ * when it fills up, on flush(), on setFlag(true) and on closeFile(). fileOffset
+ * only moves once the bytes have reached the file, so a migrated stream never
+ * loses or duplicates output.
+ *
+ * writeString() encodes with the stream's charset (UTF-8 unless set otherwise)
+ * directly into the write buffer.
  */
 package com.company;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 
 public class TransactionalFileOutputStream extends OutputStream implements Serializable{
 
+        // Default size of the write buffer
+        public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
         // Output File path
         private String outputFilePath;
 
@@ -23,65 +41,249 @@ public class TransactionalFileOutputStream extends OutputStream implements Seria
 
         // Migrated flag - to check if this object has been migrated
         private boolean migrated;
-	
+
+        // Size of the write buffer, 0 means every write goes to the file
+        private int bufferSize;
+
+        // Write buffer and the number of pending bytes in it
+        private transient byte[] buffer;
+        private transient int bufCount;
+
+        // Line separator written by writeString()
+        private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+        // Smallest write buffer that still holds any encoded character
+        private static final int MIN_BUFFER_SIZE = 16;
+
+        // Charset used by writeString(). Stored by name since Charset is not serializable.
+        private String charsetName = "UTF-8";
+
+        // Encoder for writeString()
+        private transient CharsetEncoder encoder;
+
+        // Metrics for this node: offset when the stream was first opened here, and lines written since.
+        // Written by the writing thread only, so other threads may see slightly stale values.
+        private transient boolean counting;
+        private transient long startOffset;
+        private transient long linesWritten;
+
 	public TransactionalFileOutputStream(String outFile) {
+                this(outFile, DEFAULT_BUFFER_SIZE);
+	}
+
+	public TransactionalFileOutputStream(String outFile, int bufferSize) {
                 this.outputFilePath = outFile;
                 this.fileOffset = 0;
                 this.migrated = false;
+                this.bufferSize = Math.max(bufferSize, 0);
 	}
-	
+
+        /**
+         * setFlag: Mark the stream as migrated. Pending bytes are written out first
+         * so that fileOffset covers everything the process has produced.
+         */
 	public void setFlag(boolean flag) {
-		migrated = flag;
-	}
-	
-	@Override
-	public void write(int b) throws IOException {
-                if (migrated || raHandler == null) {
+                if (flag) {
                         try {
-                                raHandler = new RandomAccessFile(outputFilePath, "rw");
-
-                                // Seek to the fileOffset
-                                raHandler.seek(fileOffset);
-
-                                // Set migrated to false
-                                migrated = false;
-                        } catch (FileNotFoundException e) {
-                                System.err.println("Error: Could not find or create "
-                                + "new file named " +outputFilePath+ ".");
+                                flush();
+                        } catch (IOException e) {
+                                System.err.println("Failed to flush output file before migration.");
                                 e.printStackTrace();
                         }
                 }
-		raHandler.write(b);
-		fileOffset = raHandler.getFilePointer();
+		migrated = flag;
 	}
-	
-	//Character encoding is a concern..
-	public void writeString(String s) throws IOException {
+
+        public long getFileOffset() {
+                return fileOffset;
+        }
+
+        public String getFilePath() {
+                return outputFilePath;
+        }
+
+        // Bytes written on this node, buffered ones included
+        public long getBytesWritten() {
+                return counting ? fileOffset + bufCount - startOffset : bufCount;
+        }
+
+        // Lines written on this node through writeString()
+        public long getLinesWritten() {
+                return linesWritten;
+        }
+
+        // Continue writing another copy of the file at the same fileOffset
+        public void setFilePath(String path) {
+                this.outputFilePath = path;
+                this.migrated = true;
+        }
+
+        // Compact form of this stream's state for MigratableProcess.writeState()
+        public void writeState(DataOutput out) throws IOException {
+                WireFormat.writeString(out, outputFilePath);
+                WireFormat.writeVarLong(out, fileOffset);
+                WireFormat.writeVarInt(out, bufferSize);
+                WireFormat.writeString(out, charsetName);
+                out.writeBoolean(migrated);
+        }
+
+        public void readState(DataInput in) throws IOException {
+                outputFilePath = WireFormat.readString(in);
+                fileOffset = WireFormat.readVarLong(in);
+                bufferSize = WireFormat.readVarInt(in);
+                charsetName = WireFormat.readString(in);
+                migrated = in.readBoolean();
+                encoder = null;
+        }
+
+        // Set the charset used by writeString()
+        public void setCharset(Charset charset) {
+                this.charsetName = charset.name();
+                this.encoder = null;
+        }
+
+        private void allocateBuffer() {
+                if (buffer == null) {
+                        buffer = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+                }
+        }
+
+        // (Re)open the file at fileOffset on first access or after migration
+        private void open() throws IOException {
                 if (migrated || raHandler == null) {
                         try {
+                                if (raHandler != null) {
+                                        raHandler.close();
+                                }
                                 raHandler = new RandomAccessFile(outputFilePath, "rw");
 
                                 // Seek to the fileOffset
                                 raHandler.seek(fileOffset);
+                                if (!counting) {
+                                        counting = true;
+                                        startOffset = fileOffset;
+                                }
 
                                 // Set migrated to false
                                 migrated = false;
                         } catch (FileNotFoundException e) {
                                 System.err.println("Error: Could not find or create "
                                 + "new file named " +outputFilePath+ ".");
-                                e.printStackTrace();
+                                throw e;
                         }
                 }
+        }
+
+        // Write the pending bytes to the file and advance fileOffset past them
+        private void drain() throws IOException {
+                if (bufCount > 0) {
+                        open();
+                        raHandler.write(buffer, 0, bufCount);
+                        LoadMonitor.recordIo(bufCount);
+                        fileOffset += bufCount;
+                        bufCount = 0;
+                }
+        }
+
+	@Override
+	public void write(int b) throws IOException {
+                if (bufferSize == 0) {
+                        open();
+                        raHandler.write(b);
+                        fileOffset++;
+                        return;
+                }
+                allocateBuffer();
+                if (bufCount == buffer.length) {
+                        drain();
+                }
+                buffer[bufCount++] = (byte) b;
+	}
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+                if (off < 0 || len < 0 || len > b.length - off) {
+                        throw new IndexOutOfBoundsException();
+                }
+                if (bufferSize == 0 || len >= bufferSize) {
+                        // Too big to be worth buffering: write what we have, then b directly
+                        drain();
+                        open();
+                        raHandler.write(b, off, len);
+                        LoadMonitor.recordIo(len);
+                        fileOffset += len;
+                        return;
+                }
+                allocateBuffer();
+                if (len > buffer.length - bufCount) {
+                        drain();
+                }
+                System.arraycopy(b, off, buffer, bufCount, len);
+                bufCount += len;
+        }
 
+        /**
+         * transferFrom: Copy up to count bytes of src starting at position to the
+         * end of this stream, using FileChannel.transferTo(). Pending buffered
+         * bytes are written first so the output stays in order.
+         * @return number of bytes copied
+         */
+        long transferFrom(FileChannel src, long position, long count) throws IOException {
+                drain();
+                open();
+                long n = src.transferTo(position, count, raHandler.getChannel());
+                LoadMonitor.recordIo(n);
+                fileOffset += n;
+                return n;
+        }
+
+	public void writeString(CharSequence s) throws IOException {
 		if(s != null) {
-			s += System.getProperty("line.separator");
-			raHandler.writeBytes(s);
-			fileOffset = raHandler.getFilePointer();
+                        writeChars(CharBuffer.wrap(s));
+                        writeChars(CharBuffer.wrap(LINE_SEPARATOR));
+                        linesWritten++;
 		}
 	}
 
+        // Encode chars into the write buffer, draining it whenever it fills up
+        private void writeChars(CharBuffer chars) throws IOException {
+                if (encoder == null) {
+                        encoder = Charset.forName(charsetName).newEncoder()
+                                .onMalformedInput(CodingErrorAction.REPLACE)
+                                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                }
+                encoder.reset();
+
+                if (bufferSize == 0) {
+                        ByteBuffer bytes = encoder.encode(chars);
+                        write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                        return;
+                }
+
+                allocateBuffer();
+                boolean flushing = false;
+                while (true) {
+                        ByteBuffer out = ByteBuffer.wrap(buffer, bufCount, buffer.length - bufCount);
+                        CoderResult result = flushing ? encoder.flush(out) : encoder.encode(chars, out, true);
+                        bufCount = out.position();
+                        if (result.isOverflow()) {
+                                drain();
+                        } else if (!flushing) {
+                                flushing = true;
+                        } else {
+                                break;
+                        }
+                }
+        }
+
+        @Override
+        public void flush() throws IOException {
+                drain();
+        }
+
 	public void closeFile() {
 		try {
+                        flush();
 			if(raHandler!=null) {
 				raHandler.close();
 			}
@@ -0,0 +1,134 @@
+/**
+ * WireFormat: Primitive encodings shared by the compact message codec and the
+ * process state hooks. Integers are written as unsigned LEB128 varints, signed
+ * values are zigzag encoded first, and strings are a varint byte count followed
+ * by UTF-8 bytes.
+ */
+package com.company;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class WireFormat {
+
+        private WireFormat() {
+        }
+
+        public static void writeVarLong(DataOutput out, long value) throws IOException {
+                while ((value & ~0x7FL) != 0) {
+                        out.writeByte((int) ((value & 0x7F) | 0x80));
+                        value >>>= 7;
+                }
+                out.writeByte((int) value);
+        }
+
+        public static long readVarLong(DataInput in) throws IOException {
+                long value = 0;
+                for (int shift = 0; shift < 64; shift += 7) {
+                        int b = in.readUnsignedByte();
+                        value |= (long) (b & 0x7F) << shift;
+                        if ((b & 0x80) == 0) {
+                                return value;
+                        }
+                }
+                throw new IOException("Malformed varint");
+        }
+
+        public static void writeVarInt(DataOutput out, int value) throws IOException {
+                writeVarLong(out, value & 0xFFFFFFFFL);
+        }
+
+        public static int readVarInt(DataInput in) throws IOException {
+                return (int) readVarLong(in);
+        }
+
+        // Zigzag so that small negative numbers (error codes) stay one byte
+        public static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+                writeVarInt(out, (value << 1) ^ (value >> 31));
+        }
+
+        public static int readSignedVarInt(DataInput in) throws IOException {
+                int value = readVarInt(in);
+                return (value >>> 1) ^ -(value & 1);
+        }
+
+        public static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+                writeVarLong(out, (value << 1) ^ (value >> 63));
+        }
+
+        public static long readSignedVarLong(DataInput in) throws IOException {
+                long value = readVarLong(in);
+                return (value >>> 1) ^ -(value & 1);
+        }
+
+        // Strings may be null: null is written as 0, anything else as byte count + 1
+        public static void writeString(DataOutput out, String s) throws IOException {
+                if (s == null) {
+                        writeVarInt(out, 0);
+                        return;
+                }
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(out, bytes.length + 1);
+                out.write(bytes);
+        }
+
+        /**
+         * readLength: Read a varint that sizes a string, array or element count.
+         * Every element takes at least one byte, so when the input is an in-memory
+         * stream the length can be held to what is left of it before anything is
+         * allocated from it.
+         */
+        public static int readLength(DataInput in) throws IOException {
+                int length = readVarInt(in);
+                if (length < 0 || (in instanceof InputStream && length > ((InputStream) in).available())) {
+                        throw new IOException("Invalid length " + (length & 0xFFFFFFFFL));
+                }
+                return length;
+        }
+
+        public static String readString(DataInput in) throws IOException {
+                int length = readVarInt(in);
+                if (length == 0) {
+                        return null;
+                }
+                if (length < 0 || (in instanceof InputStream && length - 1 > ((InputStream) in).available())) {
+                        throw new IOException("Invalid string length " + ((length - 1) & 0xFFFFFFFFL));
+                }
+                byte[] bytes = new byte[length - 1];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * readVarInt: Decode a varint from buf starting at offset
+         * @return the value, or -1 if buf ends before the varint does
+         */
+        public static long readVarInt(byte[] buf, int offset, int limit) throws IOException {
+                long value = 0;
+                for (int shift = 0; shift < 35; shift += 7) {
+                        if (offset >= limit) {
+                                return -1;
+                        }
+                        int b = buf[offset++] & 0xFF;
+                        value |= (long) (b & 0x7F) << shift;
+                        if ((b & 0x80) == 0) {
+                                return value;
+                        }
+                }
+                throw new IOException("Malformed varint");
+        }
+
+        // Number of bytes writeVarInt() uses for value
+        public static int varIntSize(int value) {
+                long v = value & 0xFFFFFFFFL;
+                int size = 1;
+                while ((v & ~0x7FL) != 0) {
+                        v >>>= 7;
+                        size++;
+                }
+                return size;
+        }
+}
@@ -0,0 +1,119 @@
+/**
+ * BenchmarkSupport: Test data and a node to migrate to for the JMH benchmarks.
+ * The node is a ProcessManager in a JVM of its own on a free port, so the
+ * benchmarks run next to a ProcessManager on this host, and its output does
+ * not mix with the results.
+ */
+package com.company;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+final class BenchmarkSupport {
+
+        static final int LINE_LENGTH = 80;
+
+        private BenchmarkSupport() {
+        }
+
+        // Lines of LINE_LENGTH characters up to size bytes
+        static void writeLines(File file, long size) throws IOException {
+                byte[] line = new byte[LINE_LENGTH];
+                for (int i = 0; i < line.length - 1; i++) {
+                        line[i] = (byte) ('a' + i % 26);
+                }
+                line[line.length - 1] = '\n';
+
+                OutputStream out = new FileOutputStream(file);
+                try {
+                        for (long written = 0; written < size; written += line.length) {
+                                out.write(line, 0, (int) Math.min(line.length, size - written));
+                        }
+                } finally {
+                        out.close();
+                }
+        }
+
+        // A port nothing listens on right now
+        static int freePort() throws IOException {
+                ServerSocket socket = new ServerSocket(0);
+                try {
+                        return socket.getLocalPort();
+                } finally {
+                        socket.close();
+                }
+        }
+
+        /**
+         * startNode: Start a ProcessManager on port in a JVM of its own, with this
+         * JVM's class path. It keeps no checkpoints and publishes no load, and
+         * its output is discarded. Stop it with stopNode().
+         */
+        static Process startNode(int port) throws IOException {
+                List<String> command = new ArrayList<String>();
+                command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add("-Dnode.port=" + port);
+                command.add("-Dnode.id=1");
+                command.add("-Dcheckpoint.interval=0");
+                command.add("-Dbalancer.interval=0");
+                command.add(ProcessManager.class.getName());
+                ProcessBuilder builder = new ProcessBuilder(command);
+                builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                return builder.start();
+        }
+
+        // Quit a node started by startNode()
+        static void stopNode(Process node) throws IOException, InterruptedException {
+                try {
+                        node.getOutputStream().write("quit\n".getBytes(StandardCharsets.US_ASCII));
+                        node.getOutputStream().close();
+                } catch (IOException e) {
+                        // already gone
+                }
+                if (!node.waitFor(5, TimeUnit.SECONDS)) {
+                        node.destroyForcibly();
+                }
+        }
+
+        // A pool to the node on port of this host, once the node accepts migrations
+        static ConnectionPool connect(int port) throws IOException, InterruptedException {
+                ConnectionPool pool = new ConnectionPool(port);
+                for (int i = 0; ; i++) {
+                        try {
+                                pool.call("localhost", new ProcessListRequest(), 1000);
+                                return pool;
+                        } catch (IOException e) {
+                                if (i == 100) {
+                                        pool.shutdown();
+                                        throw e;
+                                }
+                                pool.close("localhost");
+                                Thread.sleep(100);
+                        }
+                }
+        }
+
+        /**
+         * migrate: Migrate process to the node of pool and wait for it to confirm.
+         * The process goes under a new ID each time, as the node refuses one
+         * whose ID is still running there.
+         */
+        static long migrate(ConnectionPool pool, MigratableProcess process) throws IOException {
+                process.setProcID(process.getProcID() + 1);
+                Response resp = (Response) pool.call("localhost", process, 0);
+                if (resp.getErrorCode() != 0) {
+                        throw new IOException("Migration failed");
+                }
+                return resp.getErrorCode();
+        }
+}
@@ -0,0 +1,75 @@
+/**
+ * CodecBenchmark: Encodes and decodes a process of each kind with
+ * MessageCodec.
+ */
+package com.company;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+        @Param({ "GrepProcess", "CopyFileProcess", "SortFileProcess" })
+        public String process;
+
+        private File dir;
+        private MigratableProcess instance;
+        private byte[] encoded;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+                dir = Files.createTempDirectory("bench").toFile();
+                File input = new File(dir, "input");
+                BenchmarkSupport.writeLines(input, 1024 * 1024);
+                String output = new File(dir, "output").getPath();
+                if (process.equals("GrepProcess")) {
+                        instance = new GrepProcess(new String[] { "abc", input.getPath(), output, "1" });
+                } else if (process.equals("CopyFileProcess")) {
+                        instance = new CopyFileProcess(new String[] { input.getPath(), output, "1" });
+                } else {
+                        instance = new SortFileProcess(new String[] { input.getPath(), output, "1" });
+                }
+                encoded = MessageCodec.toBytes(instance);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+                File[] files = dir.listFiles();
+                for (int i = 0; files != null && i < files.length; i++) {
+                        files[i].delete();
+                }
+                dir.delete();
+        }
+
+        @Benchmark
+        public int encode() throws IOException {
+                return MessageCodec.toBytes(instance).length;
+        }
+
+        @Benchmark
+        public long decode() throws IOException {
+                return ((MigratableProcess) MessageCodec.fromBytes(encoded)).getProcID();
+        }
+}
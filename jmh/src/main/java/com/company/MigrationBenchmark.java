@@ -0,0 +1,69 @@
+/**
+ * MigrationBenchmark: Sends a process to a node in a JVM of its own over the
+ * loopback interface and waits for the node to confirm it has restarted it.
+ * The node listens on a free port, so a ProcessManager may run on this host
+ * meanwhile.
+ */
+package com.company;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MigrationBenchmark {
+
+        private File dir;
+        private Process node;
+        private ConnectionPool pool;
+        private MigratableProcess process;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+                dir = Files.createTempDirectory("bench").toFile();
+                // An empty input, so the process finishes as soon as it has started
+                File empty = new File(dir, "empty");
+                empty.createNewFile();
+                process = new GrepProcess(new String[] { "abc", empty.getPath(),
+                        new File(dir, "migrated.out").getPath(), "1" });
+
+                int port = BenchmarkSupport.freePort();
+                node = BenchmarkSupport.startNode(port);
+                pool = BenchmarkSupport.connect(port);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+                pool.shutdown();
+                BenchmarkSupport.stopNode(node);
+                File[] files = dir.listFiles();
+                for (int i = 0; files != null && i < files.length; i++) {
+                        files[i].delete();
+                }
+                dir.delete();
+        }
+
+        @Benchmark
+        public long roundTrip() throws IOException {
+                return BenchmarkSupport.migrate(pool, process);
+        }
+}
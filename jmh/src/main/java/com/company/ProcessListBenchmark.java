@@ -0,0 +1,66 @@
+/**
+ * ProcessListBenchmark: Encodes the answer to 'ps' for a node running count
+ * processes.
+ */
+package com.company;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessListBenchmark {
+
+        @Param({ "10", "100", "1000" })
+        public int count;
+
+        private File dir;
+        private ProcessListResponse response;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+                dir = Files.createTempDirectory("bench").toFile();
+                File input = new File(dir, "input");
+                BenchmarkSupport.writeLines(input, 1024 * 1024);
+                Object[] processes = new Object[count];
+                for (int i = 0; i < count; i++) {
+                        processes[i] = new GrepProcess(new String[] { "abc", input.getPath(),
+                                new File(dir, "grep-" + i + ".out").getPath(), Integer.toString(i) });
+                }
+                response = new ProcessListResponse(0, processes);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+                File[] files = dir.listFiles();
+                for (int i = 0; files != null && i < files.length; i++) {
+                        files[i].delete();
+                }
+                dir.delete();
+        }
+
+        @Benchmark
+        public int encode() throws IOException {
+                return MessageCodec.toBytes(response).length;
+        }
+}
@@ -0,0 +1,103 @@
+/**
+ * StreamBenchmark: Reads and writes a file of lines through the transactional
+ * streams, one byte or one line at a time.
+ */
+package com.company;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBenchmark {
+
+        // Size of the file in KB
+        @Param({ "1024", "16384" })
+        public long sizeKb;
+
+        private final String line = new String(new char[BenchmarkSupport.LINE_LENGTH - 1]).replace('\0', 'x');
+        private File dir;
+        private File input;
+        private File output;
+        private long size;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+                dir = Files.createTempDirectory("bench").toFile();
+                size = sizeKb * 1024;
+                input = new File(dir, "input");
+                output = new File(dir, "output");
+                BenchmarkSupport.writeLines(input, size);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+                input.delete();
+                output.delete();
+                dir.delete();
+        }
+
+        @Benchmark
+        public long read() throws IOException {
+                TransactionalFileInputStream in = new TransactionalFileInputStream(input.getPath());
+                long sum = 0;
+                int b;
+                while ((b = in.read()) != -1) {
+                        sum += b;
+                }
+                in.closeFile();
+                return sum;
+        }
+
+        @Benchmark
+        public long readLine() throws IOException {
+                TransactionalFileInputStream in = new TransactionalFileInputStream(input.getPath());
+                long sum = 0;
+                String next;
+                while ((next = in.readLine()) != null) {
+                        sum += next.length();
+                }
+                in.closeFile();
+                return sum;
+        }
+
+        @Benchmark
+        public long write() throws IOException {
+                TransactionalFileOutputStream out = new TransactionalFileOutputStream(output.getPath());
+                for (long i = 0; i < size; i++) {
+                        out.write((int) i);
+                }
+                out.closeFile();
+                return out.getFileOffset();
+        }
+
+        @Benchmark
+        public long writeString() throws IOException {
+                TransactionalFileOutputStream out = new TransactionalFileOutputStream(output.getPath());
+                for (long i = 0; i < size; i += BenchmarkSupport.LINE_LENGTH) {
+                        out.writeString(line);
+                }
+                out.closeFile();
+                return out.getFileOffset();
+        }
+}